@@ -0,0 +1,89 @@
+package cn.sign.config;
+
+import cn.sign.utils.ResultMap;
+import com.alibaba.fastjson.JSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * es接口的并发上限
+ * <p>
+ * 虚拟线程下请求线程数不再受tomcat线程池限制，连接池只限制同时发出的es请求，等待连接的请求会无限排队。
+ * 开启后/es下的接口(不含/es/ready)最多maxConcurrent个同时执行，其余最多等待acquireTimeoutMillis毫秒，
+ * 超时直接返回503，由调用方重试。
+ * 异步接口(如/es/searchStream)首次分发结束时不会调用afterCompletion，许可一直占用到异步处理完成后的ASYNC分发结束再释放
+ */
+@Component
+public class EsConcurrencyLimiter implements AsyncHandlerInterceptor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EsConcurrencyLimiter.class);
+
+    private static final String ACQUIRED = EsConcurrencyLimiter.class.getName() + ".acquired";
+
+    // 同时执行的es接口上限，0为不限制
+    @Value("${es.limiter.maxConcurrent:0}")
+    private int maxConcurrent;
+
+    @Value("${es.limiter.acquireTimeoutMillis:1000}")
+    private long acquireTimeoutMillis;
+
+    private Semaphore permits;
+    private final AtomicLong rejected = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if (maxConcurrent > 0) {
+            permits = new Semaphore(maxConcurrent, true);
+            LOGGER.info("es接口并发上限已开启！maxConcurrent: {}", maxConcurrent);
+        }
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (permits == null) {
+            return true;
+        }
+        // 异步处理完成后的再次分发，首次分发已获取许可
+        if (request.getDispatcherType() == DispatcherType.ASYNC || request.getAttribute(ACQUIRED) != null) {
+            return true;
+        }
+        if (permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            request.setAttribute(ACQUIRED, Boolean.TRUE);
+            return true;
+        }
+        long count = rejected.incrementAndGet();
+        LOGGER.error("es接口并发超过{}，请求被拒绝！uri: {}, 累计拒绝: {}", maxConcurrent, request.getRequestURI(), count);
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        response.getOutputStream().write(JSON.toJSONString(ResultMap.error(HttpStatus.SERVICE_UNAVAILABLE.value(),
+                "请求过多，请稍后重试!")).getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // 异步处理仍在占用es，许可保留到ASYNC分发的afterCompletion释放
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        if (request.getAttribute(ACQUIRED) != null) {
+            request.removeAttribute(ACQUIRED);
+            permits.release();
+        }
+    }
+}
@@ -1,22 +1,121 @@
-
 package cn.sign.config;
 
+import cn.sign.elasticsearch.BufferPool;
+import cn.sign.elasticsearch.ClusterRouter;
+import cn.sign.elasticsearch.EsRestClient;
+import cn.sign.elasticsearch.LoadAwareNodeSelector;
+import cn.sign.elasticsearch.PinnedNodeSelector;
 import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
 import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 @Configuration
 public class EsConfig {
 
+    // 同时进行的es请求上限，超出的请求排队等待连接，避免高并发(如虚拟线程)压垮集群
+    @Value("${es.maxConnections:30}")
+    private int maxConnections;
+
+    @Value("${es.maxConnectionsPerRoute:10}")
+    private int maxConnectionsPerRoute;
+
+    // bulk和search请求体超过minBytes时gzip压缩，并接收gzip压缩的响应
+    @Value("${es.compression.enabled:false}")
+    private boolean compression;
+
+    @Value("${es.compression.minBytes:1024}")
+    private int compressionMinBytes;
+
+    // bulk请求体和bulk、search响应使用Smile二进制编码
+    @Value("${es.smile.enabled:false}")
+    private boolean smile;
+
+    // bulk请求体使用池化的缓冲区构建，减少大数组分配
+    @Value("${es.bulkBuffer.enabled:false}")
+    private boolean bulkBuffer;
+
+    @Value("${es.bulkBuffer.chunkSize:65536}")
+    private int bulkBufferChunkSize;
+
+    @Value("${es.bulkBuffer.maxPooled:256}")
+    private int bulkBufferMaxPooled;
+
+    @Value("${es.bulkBuffer.direct:false}")
+    private boolean bulkBufferDirect;
+
+    @Autowired
+    private EsProperties esProperties;
+
+    @Bean
+    public LoadAwareNodeSelector nodeSelector() {
+        EsProperties.Selector selector = esProperties.getSelector();
+        return new LoadAwareNodeSelector(selector.getSearchRoles(), selector.getBulkRoles(), selector.getAlpha());
+    }
+
     @Bean(destroyMethod = "close")
-    public RestHighLevelClient client(){
-        RestHighLevelClient client=new RestHighLevelClient(
-                RestClient.builder(
-                        new HttpHost("localhost",9200,"http")
-                )
-        );
+    public EsRestClient client(LoadAwareNodeSelector nodeSelector){
+        return buildClient(esProperties.getNodes(), nodeSelector);
+    }
+
+    /**
+     * 读写分离路由，只读集群的客户端由路由持有，不注册为bean
+     */
+    @Bean(initMethod = "start", destroyMethod = "close")
+    public ClusterRouter clusterRouter(EsRestClient client, LoadAwareNodeSelector nodeSelector) {
+        EsProperties.ReadSplit readSplit = esProperties.getReadSplit();
+        Map<String, EsRestClient> readClients = new LinkedHashMap<>();
+        if (readSplit.isEnabled()) {
+            for (EsProperties.Cluster cluster : readSplit.getClusters()) {
+                readClients.put(cluster.getName(), buildClient(cluster.getNodes(), nodeSelector));
+            }
+        }
+        return new ClusterRouter(client, readClients, readSplit.getHealthCheckIntervalMillis(),
+                readSplit.getMaxLagMillis(), readSplit.getHeartbeatIndex());
+    }
+
+    private EsRestClient buildClient(List<EsProperties.Node> nodeConfigs, LoadAwareNodeSelector nodeSelector) {
+        boolean selectByLoad = esProperties.getSelector().isEnabled();
+        RestClientBuilder builder = RestClient.builder(nodes(nodeConfigs))
+                .setHttpClientConfigCallback(httpClientBuilder -> {
+                    httpClientBuilder
+                            .setMaxConnTotal(maxConnections)
+                            .setMaxConnPerRoute(maxConnectionsPerRoute);
+                    if (selectByLoad) {
+                        // 统计各节点的延迟和进行中请求数
+                        httpClientBuilder.addInterceptorFirst(nodeSelector.requestInterceptor());
+                        httpClientBuilder.addInterceptorLast(nodeSelector.responseInterceptor());
+                    }
+                    return httpClientBuilder;
+                });
+        // 预热时可以把请求固定到指定节点
+        builder.setNodeSelector(new PinnedNodeSelector(selectByLoad ? nodeSelector : NodeSelector.ANY));
+        if (selectByLoad) {
+            builder.setFailureListener(nodeSelector.failureListener());
+        }
+        BufferPool bufferPool = bulkBuffer ? new BufferPool(bulkBufferChunkSize, bulkBufferMaxPooled, bulkBufferDirect) : null;
+        EsRestClient client=new EsRestClient(builder, compression, compressionMinBytes, smile, bufferPool);
         return client;
     }
-}
\ No newline at end of file
+
+    private static Node[] nodes(List<EsProperties.Node> configs) {
+        List<Node> nodes = new ArrayList<>();
+        for (EsProperties.Node config : configs) {
+            HttpHost host = new HttpHost(config.getHost(), config.getPort(), config.getScheme());
+            Node.Roles roles = config.getRoles().isEmpty() ? null : new Node.Roles(config.getRoles().contains("master"),
+                    config.getRoles().contains("data"), config.getRoles().contains("ingest"));
+            nodes.add(new Node(host, null, null, null, roles, null));
+        }
+        return nodes.toArray(new Node[0]);
+    }
+}
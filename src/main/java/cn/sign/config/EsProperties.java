@@ -0,0 +1,91 @@
+package cn.sign.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * es节点、节点选择和读写分离的配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "es")
+public class EsProperties {
+    /**
+     * 集群节点
+     */
+    private List<Node> nodes = new ArrayList<>(Collections.singletonList(new Node()));
+    /**
+     * 按负载选择节点
+     */
+    private Selector selector = new Selector();
+    /**
+     * 读写分离：写入主集群(nodes)，查询发往只读集群
+     */
+    private ReadSplit readSplit = new ReadSplit();
+
+    @Data
+    public static class Node {
+        private String scheme = "http";
+        private String host = "localhost";
+        private int port = 9200;
+        /**
+         * 节点角色：master/data/ingest，都不是则为coordinating，为空表示未知
+         */
+        private List<String> roles = new ArrayList<>();
+    }
+
+    @Data
+    public static class Selector {
+        /**
+         * 是否开启按负载选择节点，关闭时使用默认的轮询
+         */
+        private boolean enabled = false;
+        /**
+         * 查询请求可用的节点角色，为空则不限制
+         */
+        private List<String> searchRoles = new ArrayList<>();
+        /**
+         * 批量写入可用的节点角色，为空则不限制
+         */
+        private List<String> bulkRoles = new ArrayList<>();
+        /**
+         * 延迟EWMA的权重(0-1)
+         */
+        private double alpha = 0.3;
+    }
+
+    @Data
+    public static class ReadSplit {
+        /**
+         * 是否开启读写分离，关闭时所有请求发往主集群
+         */
+        private boolean enabled = false;
+        /**
+         * 只读集群，数据由跨集群复制或同步任务从主集群复制
+         */
+        private List<Cluster> clusters = new ArrayList<>();
+        /**
+         * 健康检查间隔(毫秒)
+         */
+        private long healthCheckIntervalMillis = 5000L;
+        /**
+         * 只读集群允许落后主集群的最长时间(毫秒)，超过则查询切回主集群，0为不检查
+         */
+        private long maxLagMillis = 30000L;
+        /**
+         * 检查延迟的心跳索引，需要和业务索引一起复制到只读集群
+         */
+        private String heartbeatIndex = "es_heartbeat";
+    }
+
+    @Data
+    public static class Cluster {
+        private String name;
+        private List<Node> nodes = new ArrayList<>();
+    }
+}
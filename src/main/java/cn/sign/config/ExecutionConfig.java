@@ -0,0 +1,77 @@
+package cn.sign.config;
+
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 请求执行模式配置
+ * <p>
+ * 开启server.virtualThreads且运行在JDK21及以上时，tomcat的请求处理线程换成虚拟线程，
+ * 请求中阻塞的es和jdbc调用都运行在虚拟线程上；低版本JDK保持原有的tomcat线程池。
+ * 同时发出的es请求受连接池上限(es.maxConnections)限制，同时执行的es接口受EsConcurrencyLimiter(es.limiter.maxConcurrent)限制。
+ * 项目自己的es客户端代码(节点选择、慢日志、暂存区)用ReentrantLock代替synchronized，阻塞的es请求也不在ConcurrentHashMap.computeIfAbsent中执行，
+ * 但依赖库内部仍可能有synchronized块，不能保证完全不占住载体线程；
+ * mysql驱动(5.1)的网络读写在synchronized块中，经druid连接池的jdbc调用在等待数据库时仍会占住载体线程，数据库访问多的接口收益有限
+ */
+@Configuration
+public class ExecutionConfig implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutionConfig.class);
+
+    @Value("${server.virtualThreads:false}")
+    private boolean virtualThreads;
+
+    private ExecutorService executor;
+
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> executionModeCustomizer() {
+        return factory -> {
+            if (!virtualThreads) {
+                return;
+            }
+            executor = newVirtualThreadExecutor();
+            if (executor == null) {
+                LOGGER.error("当前JDK({})不支持虚拟线程，继续使用tomcat线程池！", System.getProperty("java.version"));
+                return;
+            }
+            factory.addConnectorCustomizers(connector -> {
+                ProtocolHandler handler = connector.getProtocolHandler();
+                if (handler instanceof AbstractProtocol) {
+                    ((AbstractProtocol<?>) handler).setExecutor(executor);
+                    LOGGER.info("tomcat请求处理已切换为虚拟线程！");
+                }
+            });
+        };
+    }
+
+    /**
+     * 创建每个任务一个虚拟线程的执行器(JDK21+)
+     * @return 不支持虚拟线程时返回null
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // 项目按JDK8编译，通过反射调用JDK21的接口
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
@@ -1,18 +1,31 @@
 package cn.sign.config;
 
+import cn.sign.elasticsearch.SearchProfile;
 import com.alibaba.fastjson.serializer.SerializerFeature;
 import com.alibaba.fastjson.support.config.FastJsonConfig;
 import com.alibaba.fastjson.support.spring.FastJsonHttpMessageConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.multipart.MultipartResolver;
 import org.springframework.web.multipart.commons.CommonsMultipartResolver;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -20,6 +33,41 @@ import java.util.List;
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
 
+    @Autowired
+    private EsConcurrencyLimiter esConcurrencyLimiter;
+
+    @Value("${es.stream.maxThreads:16}")
+    private int streamMaxThreads;
+    @Value("${es.stream.queueCapacity:100}")
+    private int streamQueueCapacity;
+
+    /**
+     * 异步接口(StreamingResponseBody等)的输出线程池，默认的SimpleAsyncTaskExecutor每个请求新建一个线程且不限数量
+     * @return
+     */
+    @Bean
+    public ThreadPoolTaskExecutor mvcAsyncExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(streamMaxThreads);
+        executor.setMaxPoolSize(streamMaxThreads);
+        executor.setQueueCapacity(streamQueueCapacity);
+        executor.setThreadNamePrefix("es-stream-");
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        return executor;
+    }
+
+    // 线程和排队都满时提交被拒绝，请求以错误结束
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(mvcAsyncExecutor());
+    }
+
+    // es接口并发上限，就绪检查不受限制
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(esConcurrencyLimiter).addPathPatterns("/es/**").excludePathPatterns("/es/ready");
+    }
+
     // fastjson配置
     @Override
     public void configureMessageConverters(List<HttpMessageConverter<?>> converters) {
@@ -30,7 +78,15 @@ public class WebConfig implements WebMvcConfigurer {
                 iterator.remove();
             }
         }
-        FastJsonHttpMessageConverter converter = new FastJsonHttpMessageConverter();
+        converters.add(messageConverter());
+    }
+
+    /**
+     * 创建fastjson消息转换器，启动预热时也用它渲染预热结果
+     * @return
+     */
+    public static FastJsonHttpMessageConverter messageConverter() {
+        FastJsonHttpMessageConverter converter = new TimedFastJsonHttpMessageConverter();
         FastJsonConfig config = new FastJsonConfig();
         config.setSerializerFeatures(SerializerFeature.WriteNullListAsEmpty, // List类型字段为null时输出[]而非null
                 SerializerFeature.WriteMapNullValue, // 显示空字段
@@ -61,6 +117,36 @@ public class WebConfig implements WebMvcConfigurer {
         supportedMediaTypes.add(MediaType.TEXT_PLAIN);
         supportedMediaTypes.add(MediaType.TEXT_XML);
         converter.setSupportedMediaTypes(supportedMediaTypes);
-        converters.add(converter);
+        return converter;
+    }
+
+    /**
+     * 请求开启耗时分析时(见SearchProfile.RENDER_ATTRIBUTE)，先渲染到缓冲区，把渲染耗时写入响应头X-Render-Micros后再输出
+     */
+    private static class TimedFastJsonHttpMessageConverter extends FastJsonHttpMessageConverter {
+
+        @Override
+        protected void writeInternal(Object object, HttpOutputMessage outputMessage) throws IOException {
+            RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+            if (attributes == null || attributes.getAttribute(SearchProfile.RENDER_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) == null) {
+                super.writeInternal(object, outputMessage);
+                return;
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            super.writeInternal(object, new HttpOutputMessage() {
+                @Override
+                public OutputStream getBody() {
+                    return buffer;
+                }
+
+                @Override
+                public HttpHeaders getHeaders() {
+                    return outputMessage.getHeaders();
+                }
+            });
+            outputMessage.getHeaders().set("X-Render-Micros", String.valueOf((System.nanoTime() - start) / 1000L));
+            buffer.writeTo(outputMessage.getBody());
+        }
     }
 }
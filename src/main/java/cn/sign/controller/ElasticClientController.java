@@ -1,19 +1,45 @@
 package cn.sign.controller;
 
+import cn.sign.elasticsearch.Autocomplete;
+import cn.sign.elasticsearch.BulkResult;
+import cn.sign.elasticsearch.ClusterRouter;
 import cn.sign.elasticsearch.ElasticClient;
+import cn.sign.enrich.EnrichRule;
 import cn.sign.elasticsearch.EsPage;
+import cn.sign.elasticsearch.LoadAwareNodeSelector;
+import cn.sign.elasticsearch.SearchProfile;
+import cn.sign.elasticsearch.SlowLog;
 import cn.sign.utils.ResultMap;
+import cn.sign.warmup.WarmupService;
+import com.alibaba.fastjson.JSON;
+import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,6 +50,32 @@ public class ElasticClientController {
     @Autowired
     private ElasticClient elasticClient;
 
+    @Autowired
+    private SlowLog slowLog;
+
+    @Autowired
+    private LoadAwareNodeSelector nodeSelector;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    @Autowired
+    private Autocomplete autocomplete;
+
+    @Autowired
+    private WarmupService warmupService;
+
+    /**
+     * 就绪检查，预热完成(或超时)前返回503，供负载均衡判断是否转发流量
+     */
+    @RequestMapping("ready")
+    public ResponseEntity<ResultMap> ready() {
+        if (warmupService.isReady()) {
+            return ResponseEntity.ok(ResultMap.success());
+        }
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(ResultMap.error(503, "预热中"));
+    }
+
     @RequestMapping("createIndex")
     public ResultMap createIndex() throws IOException {
         String setting = "{\"analysis\": {\"char_filter\": {\"n_to_l\": {\"type\": \"mapping\",\"mappings\": [\"n=> l \"]}},\"filter\": {\"my_stopwords\": {\"type\": \"stop\",\"stopwords\": [\"the\"]}},\"analyzer\": {\"my_analyzer\": {\"type\": \"custom\",\"char_filter\": [\"n_to_l\"],\"tokenizer\": \"standard\",\"filter\": [\"my_stopwords\"]}}}}";
@@ -32,42 +84,154 @@ public class ElasticClientController {
         return ResultMap.success();
     }
 
+    @RequestMapping("createSortedIndex")
+    public ResultMap createSortedIndex() throws IOException {
+        String setting = "{\"number_of_shards\": 1}";
+        String mapping = "{\"properties\": {\"id\": {\"type\": \"long\"},\"timestamp\": {\"type\": \"date\", \"format\": \"epoch_millis\"}}}";
+        Map<String, SortOrder> indexSort = new LinkedHashMap<>();
+        indexSort.put("timestamp", SortOrder.DESC);
+        elasticClient.createIndex("test_sorted_index", mapping, setting, indexSort);
+        return ResultMap.success();
+    }
+
+    @RequestMapping("createSuggestIndex")
+    public ResultMap createSuggestIndex() throws IOException {
+        elasticClient.createSuggestIndex("test_suggest", "suggest");
+        return ResultMap.success();
+    }
+
+    @RequestMapping("createRollingIndex")
+    public ResultMap createRollingIndex() throws IOException {
+        String setting = "{\"number_of_shards\": 1}";
+        String mapping = "{\"properties\": {\"id\": {\"type\": \"long\"},\"timestamp\": {\"type\": \"date\", \"format\": \"epoch_millis\"}}}";
+        elasticClient.createRollingIndex("test_log", mapping, setting);
+        return ResultMap.success();
+    }
+
+    @RequestMapping("rolloverIndex")
+    public ResultMap rolloverIndex() throws IOException {
+        boolean rolledOver = elasticClient.rolloverIndex("test_log", TimeValue.timeValueDays(1L), new ByteSizeValue(50, ByteSizeUnit.GB), 10000000L);
+        return ResultMap.success().put("rolledOver", rolledOver);
+    }
+
     @RequestMapping("deleteIndex")
     public ResultMap deleteIndex() throws IOException {
         elasticClient.deleteIndex("test_index");
         return ResultMap.success();
     }
 
+    @RequestMapping("reindex")
+    public ResultMap reindex() throws IOException {
+        String setting = "{\"number_of_shards\": 3}";
+        String mapping = "{\"properties\": {\"id\": {\"type\": \"long\"},\"name\": {\"type\": \"keyword\"}}}";
+        String taskId = elasticClient.reindex("test_alias", mapping, setting, 5000, false);
+        if (taskId == null) {
+            return ResultMap.error("重建索引任务提交失败！");
+        }
+        return ResultMap.success().put("taskId", taskId);
+    }
+
+    @RequestMapping("taskStatus")
+    public ResultMap taskStatus(String taskId) throws IOException {
+        return ResultMap.success().put("status", elasticClient.getTaskStatus(taskId));
+    }
+
+    @RequestMapping("updateByQuery")
+    public ResultMap updateByQuery(Float requestsPerSecond) throws IOException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("count", 1);
+        Script script = new Script(ScriptType.STORED, null, "add_count", params);
+        String taskId = elasticClient.submitUpdateByQuery("test_index", QueryBuilders.termQuery("name", "name1"), script,
+                requestsPerSecond == null ? -1 : requestsPerSecond);
+        return ResultMap.success().put("taskId", taskId);
+    }
+
+    @RequestMapping("deleteByQuery")
+    public ResultMap deleteByQuery(Float requestsPerSecond) throws IOException {
+        String taskId = elasticClient.submitDeleteByQuery("test_index", QueryBuilders.rangeQuery("count").lt(0),
+                requestsPerSecond == null ? -1 : requestsPerSecond);
+        return ResultMap.success().put("taskId", taskId);
+    }
+
+    @RequestMapping("rethrottleTask")
+    public ResultMap rethrottleTask(String taskId, Float requestsPerSecond) throws IOException {
+        boolean success = elasticClient.rethrottleTask(taskId, requestsPerSecond == null ? -1 : requestsPerSecond);
+        return success ? ResultMap.success() : ResultMap.error("任务限流调整失败！");
+    }
+
+    @RequestMapping("cancelTask")
+    public ResultMap cancelTask(String taskId) throws IOException {
+        boolean success = elasticClient.cancelTask(taskId);
+        return success ? ResultMap.success() : ResultMap.error("任务取消失败！");
+    }
+
     @RequestMapping("addDocByJson")
-    public ResultMap addDocByJson(String id) throws IOException {
-        elasticClient.addDocByJson("test_index",id,"{\"name\":\"nAME\",\"count\":"+id+"}");
+    public ResultMap addDocByJson(String id, String routing) throws IOException {
+        elasticClient.addDocByJson("test_index",id,"{\"name\":\"nAME\",\"count\":"+id+"}", routing);
         return ResultMap.success();
     }
 
     @RequestMapping("getDocument")
-    public ResultMap getDocument(String id) throws IOException {
-        Map<String, Object> res = elasticClient.getDocument("test_index",id);
+    public ResultMap getDocument(String id, String routing) throws IOException {
+        Map<String, Object> res = elasticClient.getDocument("test_index",id,routing);
         return ResultMap.success();
     }
 
     @RequestMapping("deleteDocument")
-    public ResultMap deleteDocument(String id) throws IOException {
-        elasticClient.deleteDocument("test_index",id);
+    public ResultMap deleteDocument(String id, String routing) throws IOException {
+        elasticClient.deleteDocument("test_index",id,routing);
         return ResultMap.success();
     }
 
     @RequestMapping("updateDocByScript")
-    public ResultMap updateDocByScript(String id, String script) throws IOException {
-        elasticClient.updateDocByScript("test_index",id,script);
+    public ResultMap updateDocByScript(String id, String script, String routing) throws IOException {
+        elasticClient.updateDocByScript("test_index",id,script,routing);
         return ResultMap.success();
     }
 
-    @RequestMapping("updateDocByJson")
-    public ResultMap updateDocByJson(String id, String jsonString) throws IOException {
-        elasticClient.updateDocByJson("test_index",id,jsonString);
+    @RequestMapping("putStoredScript")
+    public ResultMap putStoredScript() throws IOException {
+        elasticClient.putStoredScript("add_count", "ctx._source.count += params.count");
+        return ResultMap.success();
+    }
+
+    @RequestMapping("updateDocByStoredScript")
+    public ResultMap updateDocByStoredScript(String id, Integer count, String routing) throws IOException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("count", count);
+        elasticClient.updateDocByStoredScript("test_index", id, "add_count", params, routing);
         return ResultMap.success();
     }
 
+    @RequestMapping("bulkUpdateByScript")
+    public ResultMap bulkUpdateByScript(Integer count, String routing) throws IOException {
+        List<String> ids = new ArrayList<>();
+        ids.add("1");
+        ids.add("5");
+        Map<String, Object> params = new HashMap<>();
+        params.put("count", count);
+        Map<String, Integer> counts = elasticClient.bulkUpdateByScript("test_index", ids, "add_count", params, routing);
+        return ResultMap.success().put("counts", counts);
+    }
+
+    @RequestMapping("bulkUpdateByScriptParams")
+    public ResultMap bulkUpdateByScriptParams(Integer count, String routing) throws IOException {
+        Map<String, Map<String, Object>> paramsById = new LinkedHashMap<>();
+        for (String id : new String[]{"1", "5"}) {
+            Map<String, Object> params = new HashMap<>();
+            params.put("count", count * Integer.parseInt(id));
+            paramsById.put(id, params);
+        }
+        Map<String, Integer> counts = elasticClient.bulkUpdateByScriptParams("test_index", paramsById, "add_count", routing);
+        return ResultMap.success().put("counts", counts);
+    }
+
+    @RequestMapping("updateDocByJson")
+    public ResultMap updateDocByJson(String id, String jsonString, String routing) throws IOException {
+        DocWriteResponse.Result result = elasticClient.updateDocByJson("test_index",id,jsonString,routing);
+        return ResultMap.success().put("result", result);
+    }
+
     @RequestMapping("bulkAdd")
     public ResultMap bulkAdd() throws IOException {
         List<Map<String, String>> params = new ArrayList<>();
@@ -76,8 +240,8 @@ public class ElasticClientController {
         map.put("id","5");
         map.put("json","{\"name\":\"nAME\",\"count\":1}");
         params.add(map);
-        elasticClient.bulkAdd(params);
-        return ResultMap.success();
+        BulkResult result = elasticClient.bulkAdd(params);
+        return ResultMap.success().put("result", result);
     }
 
     @RequestMapping("bulkUpdate")
@@ -88,8 +252,8 @@ public class ElasticClientController {
         map.put("id","5");
         map.put("json","{\"name\":\"nAME\",\"count\":2}");
         params.add(map);
-        elasticClient.bulkUpdate(params);
-        return ResultMap.success();
+        BulkResult result = elasticClient.bulkUpdate(params);
+        return ResultMap.success().put("result", result);
     }
 
     @RequestMapping("bulkDelete")
@@ -99,8 +263,8 @@ public class ElasticClientController {
         map.put("index","test_index");
         map.put("id","5");
         params.add(map);
-        elasticClient.bulkDelete(params);
-        return ResultMap.success();
+        BulkResult result = elasticClient.bulkDelete(params);
+        return ResultMap.success().put("result", result);
     }
 
     @RequestMapping("multiGet")
@@ -115,7 +279,7 @@ public class ElasticClientController {
     }
 
     @RequestMapping("search")
-    public ResultMap search() throws IOException {
+    public ResultMap search(String routing) throws IOException {
         SearchRequest request = new SearchRequest("test_index");
         //构造bool查询
         BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
@@ -127,12 +291,77 @@ public class ElasticClientController {
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
         //排序
 //        searchSourceBuilder.sort(SortBuilders.fieldSort("count").order(SortOrder.DESC));
-        List<Map<String, Object>> list = elasticClient.search("test_index",boolQueryBuilder, null);
+        List<Map<String, Object>> list = elasticClient.search("test_index",boolQueryBuilder, null, routing);
         return ResultMap.success();
     }
 
+    @RequestMapping("searchTop")
+    public ResultMap searchTop(Integer size, String routing) throws IOException {
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
+        boolQueryBuilder.filter(QueryBuilders.matchQuery("name", "name1"));
+        // 不指定排序，按索引排序(timestamp倒序)取最新的N条
+        List<Map<String, Object>> list = elasticClient.searchTop("test_sorted_index", boolQueryBuilder, null, size == null ? 10 : size, routing);
+        return ResultMap.success();
+    }
+
+    @RequestMapping("putSearchTemplate")
+    public ResultMap putSearchTemplate() throws IOException {
+        elasticClient.putSearchTemplate("name_count", "{\"query\":{\"bool\":{\"must\":[{\"match\":{\"name\":\"{{name}}\"}}],"
+                + "\"filter\":[{\"range\":{\"count\":{\"gte\":\"{{minCount}}\"}}}]}},\"size\":\"{{size}}\"}");
+        return ResultMap.success();
+    }
+
+    @RequestMapping("searchTemplate")
+    public ResultMap searchTemplate(String name, Integer minCount, String routing) throws IOException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("name", name == null ? "name1" : name);
+        params.put("minCount", minCount == null ? 0 : minCount);
+        params.put("size", 10);
+        List<Map<String, Object>> list = elasticClient.searchTemplate("test_index", "name_count", params, routing);
+        return ResultMap.success().put("data", list);
+    }
+
+    @RequestMapping("searchShape")
+    public ResultMap searchShape(String name, String routing) throws IOException {
+        Map<String, Object> params = new HashMap<>();
+        params.put("name", name == null ? "name1" : name);
+        // 查询结构只在第一次调用时构造和序列化
+        List<Map<String, Object>> list = elasticClient.searchShape("test_index", "match_name", () -> new SearchSourceBuilder()
+                .query(QueryBuilders.boolQuery().must(QueryBuilders.matchQuery("name", "{{name}}")))
+                .size(10), params, routing);
+        return ResultMap.success().put("data", list);
+    }
+
+    /**
+     * 流式查询：逐页拉取并逐条输出，format=sse时以Server-Sent Events输出，否则输出NDJSON
+     * 客户端消费慢时写出阻塞，不会继续拉取下一页；客户端断开后写出失败，停止拉取
+     */
+    @RequestMapping("searchStream")
+    public ResponseEntity<StreamingResponseBody> searchStream(String format, Integer pageSize, String routing) {
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
+        boolQueryBuilder.must(QueryBuilders.matchQuery("name", "name1"));
+        Iterator<List<Map<String, Object>>> pages = elasticClient.searchPages("test_index", boolQueryBuilder, null,
+                pageSize == null ? 500 : pageSize, routing);
+        boolean sse = "sse".equalsIgnoreCase(format);
+        StreamingResponseBody body = out -> {
+            while (pages.hasNext()) {
+                for (Map<String, Object> hit : pages.next()) {
+                    String json = JSON.toJSONString(hit);
+                    String line = sse ? "data: " + json + "\n\n" : json + "\n";
+                    out.write(line.getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            }
+        };
+        MediaType mediaType = sse ? MediaType.TEXT_EVENT_STREAM : MediaType.parseMediaType("application/x-ndjson");
+        return ResponseEntity.ok().contentType(mediaType).body(body);
+    }
+
+    /**
+     * 分页查询，profile=true时返回es的分片耗时明细和客户端各阶段耗时，渲染耗时见响应头X-Render-Micros
+     */
     @RequestMapping("searchPage")
-    public ResultMap searchPage() throws IOException {
+    public ResultMap searchPage(Boolean profile, HttpServletRequest httpRequest) throws IOException {
         SearchRequest request = new SearchRequest("test_index");
         //构造bool查询
         BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
@@ -144,10 +373,88 @@ public class ElasticClientController {
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
         //排序
 //        searchSourceBuilder.sort(SortBuilders.fieldSort("count").order(SortOrder.DESC));
+        if (Boolean.TRUE.equals(profile)) {
+            SearchProfile searchProfile = new SearchProfile();
+            EsPage<Map<String, Object>> list = elasticClient.search("test_index", boolQueryBuilder, null, 0, 10, null, searchProfile);
+            httpRequest.setAttribute(SearchProfile.RENDER_ATTRIBUTE, searchProfile);
+            return ResultMap.success().put("data", list).put("profile", searchProfile);
+        }
         EsPage<Map<String, Object>> list = elasticClient.search("test_index",boolQueryBuilder, null,0,10);
         return ResultMap.success();
     }
 
+    /**
+     * 输入时的自动补全
+     */
+    @RequestMapping("suggest")
+    public ResultMap suggest(String prefix, Integer size) throws IOException {
+        if (prefix == null || prefix.trim().isEmpty()) {
+            return ResultMap.success().put("data", Collections.emptyList());
+        }
+        List<String> list = autocomplete.suggest("test_suggest", "suggest", prefix, size == null ? 10 : size);
+        return ResultMap.success().put("data", list);
+    }
+
+    @RequestMapping("searchEnriched")
+    public ResultMap searchEnriched() throws IOException {
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
+        boolQueryBuilder.must(QueryBuilders.matchQuery("name", "name1"));
+        // 文档中的userId关联mysql的user表，查到的列合并到文档的user字段
+        EnrichRule userRule = new EnrichRule("userId", "user", "id", Arrays.asList("username", "phone"), "user");
+        EsPage<Map<String, Object>> list = elasticClient.searchAndEnrich("test_index", boolQueryBuilder, null, 0, 10,
+                Collections.singletonList(userRule));
+        return ResultMap.success().put("data", list);
+    }
+
+    @RequestMapping("searchByTimeRange")
+    public ResultMap searchByTimeRange() throws IOException {
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
+        boolQueryBuilder.must(QueryBuilders.matchQuery("name", "name1"));
+        long endTime = System.currentTimeMillis();
+        long startTime = endTime - TimeValue.timeValueHours(1L).millis();
+        EsPage<Map<String, Object>> list = elasticClient.searchByTimeRange("test_log", boolQueryBuilder, null, startTime, endTime, 0, 10);
+        return ResultMap.success();
+    }
+
+    /**
+     * 最近的慢操作记录
+     * @param operation search/bulk/mget，为空则返回全部
+     * @param limit 最大条数
+     */
+    @RequestMapping("slowLog")
+    public ResultMap slowLog(String operation, Integer limit) {
+        return ResultMap.success().put("entries", slowLog.recent(operation, limit == null ? 50 : limit));
+    }
+
+    /**
+     * 各节点的延迟和进行中请求数(开启es.selector.enabled时统计)
+     */
+    @RequestMapping("nodeStats")
+    public ResultMap nodeStats() {
+        return ResultMap.success().put("nodes", nodeSelector.getStats());
+    }
+
+    /**
+     * 在指定集群上查询，cluster为primary或只读集群名，不传则按读写分离路由
+     */
+    @RequestMapping("searchOnCluster")
+    public ResultMap searchOnCluster(String cluster) throws IOException {
+        BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
+        boolQueryBuilder.must(QueryBuilders.matchQuery("name", "name1"));
+        EsPage<Map<String, Object>> list = cluster == null
+                ? elasticClient.search("test_index", boolQueryBuilder, null, 0, 10)
+                : ClusterRouter.onCluster(cluster, () -> elasticClient.search("test_index", boolQueryBuilder, null, 0, 10));
+        return ResultMap.success().put("data", list);
+    }
+
+    /**
+     * 各只读集群的健康状态和延迟
+     */
+    @RequestMapping("clusters")
+    public ResultMap clusters() {
+        return ResultMap.success().put("clusters", clusterRouter.getStatus());
+    }
+
     @RequestMapping("setMapping")
     public ResultMap setMapping() throws IOException {
 
@@ -0,0 +1,142 @@
+package cn.sign.elasticsearch;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 自动补全
+ * <p>
+ * 前缀统一去掉开头的空白并转小写(和completion字段的simple分词一致)，结尾的空格表示上一个词已输完，保留。
+ * 相同的前缀同时只向es发一个请求，其他请求等待该请求的结果；不超过cache.maxPrefixLength的短前缀(输入开始时的热点前缀)缓存ttlMillis毫秒。
+ * 返回的列表在请求间共享，不可修改
+ */
+@Component
+public class Autocomplete {
+
+    @Value("${es.suggest.cache.ttlMillis:60000}")
+    private long cacheTtlMillis;
+    @Value("${es.suggest.cache.maxSize:10000}")
+    private int cacheMaxSize;
+    @Value("${es.suggest.cache.maxPrefixLength:4}")
+    private int cacheMaxPrefixLength;
+
+    @Autowired
+    private ElasticClient elasticClient;
+
+    /**
+     * 进行中的请求
+     */
+    private final Map<String, CompletableFuture<List<String>>> inFlight = new ConcurrentHashMap<>();
+    /**
+     * 热点前缀缓存
+     */
+    private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+    /**
+     * 按前缀自动补全
+     * @param index 索引
+     * @param field completion字段
+     * @param prefix 前缀
+     * @param size 最多返回条数
+     * @return 不可修改的补全结果
+     * @throws IOException
+     */
+    public List<String> suggest(String index, String field, String prefix, int size) throws IOException {
+        String normalized = trimLeading(prefix).toLowerCase(Locale.ROOT);
+        String key = index + '\0' + field + '\0' + size + '\0' + normalized;
+        boolean cacheable = cacheTtlMillis > 0 && normalized.length() <= cacheMaxPrefixLength;
+        if (cacheable) {
+            List<String> cached = getCached(key, System.currentTimeMillis());
+            if (Objects.nonNull(cached)) {
+                return cached;
+            }
+        }
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        CompletableFuture<List<String>> running = inFlight.putIfAbsent(key, future);
+        if (Objects.nonNull(running)) {
+            return await(running);
+        }
+        try {
+            List<String> result = Collections.unmodifiableList(elasticClient.suggest(index, field, normalized, size));
+            if (cacheable) {
+                putCached(key, result, System.currentTimeMillis());
+            }
+            future.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private static String trimLeading(String prefix) {
+        int start = 0;
+        while (start < prefix.length() && Character.isWhitespace(prefix.charAt(start))) {
+            start++;
+        }
+        return prefix.substring(start);
+    }
+
+    private static List<String> await(CompletableFuture<List<String>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待自动补全结果时被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private List<String> getCached(String key, long now) {
+        CacheEntry entry = cache.get(key);
+        if (Objects.isNull(entry)) {
+            return null;
+        }
+        if (entry.expiresAt < now) {
+            cache.remove(key, entry);
+            return null;
+        }
+        return entry.result;
+    }
+
+    private void putCached(String key, List<String> result, long now) {
+        if (cache.size() >= cacheMaxSize) {
+            cache.values().removeIf(entry -> entry.expiresAt < now);
+            if (cache.size() >= cacheMaxSize) {
+                return;
+            }
+        }
+        cache.put(key, new CacheEntry(now + cacheTtlMillis, result));
+    }
+
+    private static final class CacheEntry {
+        private final long expiresAt;
+        private final List<String> result;
+
+        private CacheEntry(long expiresAt, List<String> result) {
+            this.expiresAt = expiresAt;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package cn.sign.elasticsearch;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 定长字节缓冲区池，用于构建bulk请求体，避免每次请求都分配新的大数组
+ * <p>
+ * 缓冲区可以分配在堆外(direct)，发送时直接写入socket；池中最多保留maxPooled个缓冲区，多余的归还时丢弃
+ */
+public class BufferPool {
+
+    private final int chunkSize;
+    private final int maxPooled;
+    private final boolean direct;
+
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param chunkSize 每个缓冲区的字节数
+     * @param maxPooled 池中最多保留的缓冲区数
+     * @param direct 是否分配在堆外
+     */
+    public BufferPool(int chunkSize, int maxPooled, boolean direct) {
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    /**
+     * 获取一个已清空的缓冲区
+     * @return
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != chunkSize || pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    public int getPooled() {
+        return pooled.get();
+    }
+}
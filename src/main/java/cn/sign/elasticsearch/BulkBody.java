@@ -0,0 +1,199 @@
+package cn.sign.elasticsearch;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 写入池化缓冲区的bulk请求体
+ * <p>
+ * 作为OutputStream依次写入从BufferPool获取的缓冲区，写完后通过toEntity作为请求体发送：
+ * 异步客户端直接把各缓冲区写入连接，不再复制成整块数组。请求完成后调用release归还缓冲区
+ */
+public class BulkBody extends OutputStream {
+
+    private final BufferPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long length;
+
+    public BulkBody(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity().put((byte) b);
+        length++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int len) {
+        while (len > 0) {
+            ByteBuffer buffer = ensureCapacity();
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+            len -= count;
+            length += count;
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * 转为请求体，可重复发送(失败重试其他节点时从头发送)
+     * @param contentType
+     * @param contentEncoding 为空则不设置
+     * @return
+     */
+    public HttpEntity toEntity(ContentType contentType, String contentEncoding) {
+        Entity entity = new Entity();
+        entity.setContentType(contentType.toString());
+        if (contentEncoding != null) {
+            entity.setContentEncoding(contentEncoding);
+        }
+        return entity;
+    }
+
+    /**
+     * 归还缓冲区，之后不能再使用
+     */
+    public void release() {
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+        length = 0L;
+    }
+
+    private ByteBuffer ensureCapacity() {
+        if (current == null || !current.hasRemaining()) {
+            current = pool.acquire();
+            chunks.add(current);
+        }
+        return current;
+    }
+
+    /**
+     * 已写入内容的只读视图
+     */
+    private List<ByteBuffer> views() {
+        List<ByteBuffer> views = new ArrayList<>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer view = chunk.duplicate();
+            view.flip();
+            views.add(view);
+        }
+        return views;
+    }
+
+    private class Entity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+        private List<ByteBuffer> sending;
+        private int index;
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            if (sending == null) {
+                sending = views();
+                index = 0;
+            }
+            while (index < sending.size()) {
+                ByteBuffer buffer = sending.get(index);
+                encoder.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // 连接暂时写不下，等待下次回调
+                    return;
+                }
+                index++;
+            }
+            encoder.complete();
+        }
+
+        @Override
+        public void close() {
+            // 重试时重新从头发送
+            sending = null;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getContent() {
+            List<ByteBuffer> buffers = views();
+            return new InputStream() {
+                private int position;
+
+                @Override
+                public int read() {
+                    ByteBuffer buffer = next();
+                    return buffer == null ? -1 : buffer.get() & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int len) {
+                    ByteBuffer buffer = next();
+                    if (buffer == null) {
+                        return -1;
+                    }
+                    int count = Math.min(len, buffer.remaining());
+                    buffer.get(bytes, offset, count);
+                    return count;
+                }
+
+                private ByteBuffer next() {
+                    while (position < buffers.size() && !buffers.get(position).hasRemaining()) {
+                        position++;
+                    }
+                    return position < buffers.size() ? buffers.get(position) : null;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] copy = null;
+            for (ByteBuffer view : views()) {
+                if (view.hasArray()) {
+                    out.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+                } else {
+                    if (copy == null) {
+                        copy = new byte[8192];
+                    }
+                    while (view.hasRemaining()) {
+                        int count = Math.min(copy.length, view.remaining());
+                        view.get(copy, 0, count);
+                        out.write(copy, 0, count);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package cn.sign.elasticsearch;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.xcontent.*;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 把批量写请求编码为bulk请求体(每条操作一行元数据，一行内容)，支持JSON(NDJSON)和Smile
+ * <p>
+ * 文档内容与目标格式相同时直接复制，不同时(如JSON文档以Smile发送)逐个解析后转换，不修改原请求。
+ * JSON的元数据行直接写入一个复用的缓冲区，不为每条操作创建XContentBuilder。
+ * <p>
+ * 文档从String到IndexRequest中字节数组的转换发生在构建请求时，BulkRequest的校验、大小估算、写入去重和落盘都依赖这份字节，
+ * 所以这里无法直接从String写入请求体，JSON文档在编码时只再复制一次
+ */
+public final class BulkEncoder {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private BulkEncoder() {
+    }
+
+    /**
+     * 编码批量请求
+     * @param bulkRequest
+     * @param xContentType 请求体格式，JSON或SMILE
+     * @param out
+     * @throws IOException
+     */
+    public static void encode(BulkRequest bulkRequest, XContentType xContentType, OutputStream out) throws IOException {
+        byte separator = xContentType.xContent().streamSeparator();
+        LineBuffer metadataLine = xContentType == XContentType.JSON ? new LineBuffer() : null;
+        for (DocWriteRequest<?> request : bulkRequest.requests()) {
+            if (metadataLine != null) {
+                metadataLine.reset();
+                jsonMetadata(request, metadataLine);
+                metadataLine.writeTo(out);
+                out.write(separator);
+            } else {
+                writeLine(out, metadata(request, xContentType), xContentType, separator);
+            }
+            switch (request.opType()) {
+                case INDEX:
+                case CREATE:
+                    IndexRequest index = (IndexRequest) request;
+                    writeLine(out, convert(index.source(), index.getContentType(), xContentType), xContentType, separator);
+                    break;
+                case UPDATE:
+                    XContentBuilder body = XContentFactory.contentBuilder(xContentType);
+                    ((UpdateRequest) request).toXContent(body, ToXContent.EMPTY_PARAMS);
+                    writeLine(out, BytesReference.bytes(body), xContentType, separator);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 请求体的Content-Type
+     * @param xContentType
+     * @return
+     */
+    public static String contentType(XContentType xContentType) {
+        return xContentType == XContentType.JSON ? "application/x-ndjson" : xContentType.mediaTypeWithoutParameters();
+    }
+
+    /**
+     * 与metadata相同的字段，直接写出JSON
+     */
+    private static void jsonMetadata(DocWriteRequest<?> request, LineBuffer out) {
+        out.write('{');
+        writeString(out, request.opType().getLowercase());
+        out.write(':');
+        out.write('{');
+        writeField(out, "_index", request.index(), true);
+        if (request.id() != null) {
+            writeField(out, "_id", request.id(), false);
+        }
+        if (request.routing() != null) {
+            writeField(out, "routing", request.routing(), false);
+        }
+        boolean implicitVersion = request.opType() == DocWriteRequest.OpType.CREATE && request.version() == Versions.MATCH_DELETED;
+        if (request.version() != Versions.MATCH_ANY && !implicitVersion) {
+            writeField(out, "version", request.version());
+        }
+        if (request.versionType() != VersionType.INTERNAL) {
+            writeField(out, "version_type", request.versionType().toString().toLowerCase(), false);
+        }
+        if (request.ifSeqNo() != SequenceNumbers.UNASSIGNED_SEQ_NO) {
+            writeField(out, "if_seq_no", request.ifSeqNo());
+            writeField(out, "if_primary_term", request.ifPrimaryTerm());
+        }
+        if (request instanceof IndexRequest && ((IndexRequest) request).getPipeline() != null) {
+            writeField(out, "pipeline", ((IndexRequest) request).getPipeline(), false);
+        }
+        if (request instanceof UpdateRequest && ((UpdateRequest) request).retryOnConflict() > 0) {
+            writeField(out, "retry_on_conflict", ((UpdateRequest) request).retryOnConflict());
+        }
+        out.write('}');
+        out.write('}');
+    }
+
+    private static void writeField(LineBuffer out, String name, String value, boolean first) {
+        if (!first) {
+            out.write(',');
+        }
+        writeString(out, name);
+        out.write(':');
+        writeString(out, value);
+    }
+
+    private static void writeField(LineBuffer out, String name, long value) {
+        out.write(',');
+        writeString(out, name);
+        out.write(':');
+        String digits = Long.toString(value);
+        for (int i = 0; i < digits.length(); i++) {
+            out.write(digits.charAt(i));
+        }
+    }
+
+    /**
+     * 写出带引号的JSON字符串，按UTF-8编码，转义引号、反斜杠和控制字符
+     */
+    private static void writeString(LineBuffer out, String value) {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write('\\');
+                out.write('u');
+                out.write('0');
+                out.write('0');
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.write(0xF0 | (codePoint >> 18));
+                out.write(0x80 | ((codePoint >> 12) & 0x3F));
+                out.write(0x80 | ((codePoint >> 6) & 0x3F));
+                out.write(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符与String.getBytes一致替换为?
+                out.write('?');
+            } else {
+                out.write(0xE0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+        out.write('"');
+    }
+
+    private static BytesReference metadata(DocWriteRequest<?> request, XContentType xContentType) throws IOException {
+        XContentBuilder builder = XContentFactory.contentBuilder(xContentType);
+        builder.startObject().startObject(request.opType().getLowercase());
+        builder.field("_index", request.index());
+        if (request.id() != null) {
+            builder.field("_id", request.id());
+        }
+        if (request.routing() != null) {
+            builder.field("routing", request.routing());
+        }
+        // create操作隐含的版本(MATCH_DELETED)不需要发送
+        boolean implicitVersion = request.opType() == DocWriteRequest.OpType.CREATE && request.version() == Versions.MATCH_DELETED;
+        if (request.version() != Versions.MATCH_ANY && !implicitVersion) {
+            builder.field("version", request.version());
+        }
+        if (request.versionType() != VersionType.INTERNAL) {
+            builder.field("version_type", request.versionType().toString().toLowerCase());
+        }
+        if (request.ifSeqNo() != SequenceNumbers.UNASSIGNED_SEQ_NO) {
+            builder.field("if_seq_no", request.ifSeqNo());
+            builder.field("if_primary_term", request.ifPrimaryTerm());
+        }
+        if (request instanceof IndexRequest && ((IndexRequest) request).getPipeline() != null) {
+            builder.field("pipeline", ((IndexRequest) request).getPipeline());
+        }
+        if (request instanceof UpdateRequest && ((UpdateRequest) request).retryOnConflict() > 0) {
+            builder.field("retry_on_conflict", ((UpdateRequest) request).retryOnConflict());
+        }
+        builder.endObject().endObject();
+        return BytesReference.bytes(builder);
+    }
+
+    private static BytesReference convert(BytesReference source, XContentType sourceType, XContentType xContentType) throws IOException {
+        if (sourceType == null || sourceType == xContentType) {
+            return source;
+        }
+        try (XContentParser parser = sourceType.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source.streamInput())) {
+            XContentBuilder builder = XContentFactory.contentBuilder(xContentType);
+            builder.copyCurrentStructure(parser);
+            return BytesReference.bytes(builder);
+        }
+    }
+
+    /**
+     * 按原始分段直接写出，不先合并成整块数组；JSON中的换行只可能是空白，替换为空格以满足NDJSON
+     */
+    private static void writeLine(OutputStream out, BytesReference line, XContentType xContentType, byte separator) throws IOException {
+        BytesRefIterator iterator = line.iterator();
+        for (BytesRef ref = iterator.next(); ref != null; ref = iterator.next()) {
+            if (xContentType == XContentType.JSON && containsNewline(ref)) {
+                out.write(WriteSpool.stripNewlines(Arrays.copyOfRange(ref.bytes, ref.offset, ref.offset + ref.length)));
+            } else {
+                out.write(ref.bytes, ref.offset, ref.length);
+            }
+        }
+        out.write(separator);
+    }
+
+    private static boolean containsNewline(BytesRef ref) {
+        for (int i = ref.offset; i < ref.offset + ref.length; i++) {
+            if (ref.bytes[i] == '\n' || ref.bytes[i] == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 单线程使用的行缓冲区，编码过程中复用
+     */
+    private static final class LineBuffer {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        private void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size << 1);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        private void reset() {
+            size = 0;
+        }
+
+        private void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+    }
+}
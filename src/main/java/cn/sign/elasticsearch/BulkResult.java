@@ -0,0 +1,141 @@
+package cn.sign.elasticsearch;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.elasticsearch.action.DocWriteResponse;
+
+import java.util.Arrays;
+
+/**
+ * 批量操作的结果
+ * <p>
+ * 只记录各结果的数量；失败的文档按id、状态码、原因分别存放在数组中，不为每个文档创建对象
+ */
+@Getter
+public class BulkResult {
+    /**
+     * 操作类型：add/update/delete
+     */
+    private final String operation;
+    /**
+     * 发送到es的操作数
+     */
+    private int requested;
+    private int succeeded;
+    private int failed;
+    /**
+     * 客户端去重跳过的数量(未发送)
+     */
+    private int skipped;
+    private int created;
+    private int updated;
+    private int deleted;
+    /**
+     * es判定内容未变化的数量
+     */
+    private int noop;
+    /**
+     * 写入暂存区等待回放的数量
+     */
+    private int spooled;
+    /**
+     * es返回的耗时(毫秒)
+     */
+    private long took;
+    /**
+     * 请求体大小(字节，压缩和编码前)
+     */
+    private long bytesSent;
+
+    @Getter(AccessLevel.NONE)
+    private String[] failedIdArray = new String[0];
+    @Getter(AccessLevel.NONE)
+    private int[] failedStatusArray = new int[0];
+    @Getter(AccessLevel.NONE)
+    private String[] failedReasonArray = new String[0];
+
+    public BulkResult(String operation) {
+        this.operation = operation;
+    }
+
+    void sent(int requested, long bytesSent) {
+        this.requested = requested;
+        this.bytesSent = bytesSent;
+    }
+
+    void took(long took) {
+        this.took = took;
+    }
+
+    void skip() {
+        skipped++;
+    }
+
+    void spool(int count) {
+        spooled += count;
+    }
+
+    void succeed(DocWriteResponse.Result result) {
+        succeeded++;
+        if (result == DocWriteResponse.Result.CREATED) {
+            created++;
+        } else if (result == DocWriteResponse.Result.UPDATED) {
+            updated++;
+        } else if (result == DocWriteResponse.Result.DELETED) {
+            deleted++;
+        } else if (result == DocWriteResponse.Result.NOOP) {
+            noop++;
+        }
+    }
+
+    void fail(String id, int status, String reason) {
+        if (failed == failedIdArray.length) {
+            int capacity = Math.max(failed * 2, 8);
+            failedIdArray = Arrays.copyOf(failedIdArray, capacity);
+            failedStatusArray = Arrays.copyOf(failedStatusArray, capacity);
+            failedReasonArray = Arrays.copyOf(failedReasonArray, capacity);
+        }
+        failedIdArray[failed] = id;
+        failedStatusArray[failed] = status;
+        failedReasonArray[failed] = reason;
+        failed++;
+    }
+
+    /**
+     * 失败的文档id，与getFailedStatuses、getFailedReasons一一对应
+     * @return
+     */
+    public String[] getFailedIds() {
+        return Arrays.copyOf(failedIdArray, failed);
+    }
+
+    public int[] getFailedStatuses() {
+        return Arrays.copyOf(failedStatusArray, failed);
+    }
+
+    public String[] getFailedReasons() {
+        return Arrays.copyOf(failedReasonArray, failed);
+    }
+
+    /**
+     * 前limit个失败，用于日志
+     * @param limit
+     * @return
+     */
+    public String failureSample(int limit) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < Math.min(limit, failed); i++) {
+            builder.append(i == 0 ? "" : "; ").append("id=").append(failedIdArray[i])
+                    .append(", status=").append(failedStatusArray[i])
+                    .append(", reason=").append(failedReasonArray[i]);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "operation=" + operation + ", requested=" + requested + ", succeeded=" + succeeded + ", failed=" + failed
+                + ", skipped=" + skipped + ", created=" + created + ", updated=" + updated + ", deleted=" + deleted
+                + ", noop=" + noop + ", spooled=" + spooled + ", took=" + took + "ms, bytesSent=" + bytesSent;
+    }
+}
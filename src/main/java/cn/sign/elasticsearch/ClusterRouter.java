@@ -0,0 +1,273 @@
+package cn.sign.elasticsearch;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 读写分离的集群路由
+ * <p>
+ * 写入和管理操作使用主集群，查询轮流发往健康的只读集群。只读集群的健康由后台定时检查：
+ * 集群状态不是red，且延迟不超过maxLagMillis。延迟通过心跳检查：每次检查向主集群的心跳索引写入当前时间，
+ * 再从各只读集群读出已复制过来的时间，差值即只读集群最多落后的时间(最多多算一个检查间隔)。
+ * 没有健康的只读集群或只读集群请求失败时查询切回主集群。
+ * 单次操作可以通过onCluster指定集群
+ */
+public class ClusterRouter {
+
+    public static final String PRIMARY = "primary";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterRouter.class);
+
+    private static final String HEARTBEAT_ID = "heartbeat";
+    private static final String HEARTBEAT_FIELD = "timestamp";
+    private static final ThreadLocal<String> CLUSTER = new ThreadLocal<>();
+
+    private final EsRestClient primary;
+    private final Map<String, ReadCluster> readClusters = new LinkedHashMap<>();
+    private final long healthCheckIntervalMillis;
+    private final long maxLagMillis;
+    private final String heartbeatIndex;
+    private final AtomicInteger next = new AtomicInteger();
+    private ScheduledExecutorService checker;
+
+    /**
+     * @param primary 主集群客户端
+     * @param readClients 只读集群客户端，key为集群名
+     * @param healthCheckIntervalMillis 健康检查间隔(毫秒)
+     * @param maxLagMillis 允许的最大延迟(毫秒)，0为不检查
+     * @param heartbeatIndex 心跳索引
+     */
+    public ClusterRouter(EsRestClient primary, Map<String, EsRestClient> readClients, long healthCheckIntervalMillis,
+                         long maxLagMillis, String heartbeatIndex) {
+        this.primary = primary;
+        readClients.forEach((name, client) -> readClusters.put(name, new ReadCluster(name, client)));
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        this.maxLagMillis = maxLagMillis;
+        this.heartbeatIndex = heartbeatIndex;
+    }
+
+    /**
+     * 在指定集群上执行操作
+     * @param cluster 集群名，PRIMARY为主集群
+     * @param call
+     * @return
+     * @throws IOException
+     */
+    public static <T> T onCluster(String cluster, CheckedSupplier<T, IOException> call) throws IOException {
+        String previous = CLUSTER.get();
+        CLUSTER.set(cluster);
+        try {
+            return call.get();
+        } finally {
+            if (previous == null) {
+                CLUSTER.remove();
+            } else {
+                CLUSTER.set(previous);
+            }
+        }
+    }
+
+    public void start() {
+        if (readClusters.isEmpty()) {
+            return;
+        }
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-cluster-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 首次检查通过前查询都发往主集群
+        checker.scheduleWithFixedDelay(this::checkHealth, 0L, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("读写分离已开启！只读集群: {}", readClusters.keySet());
+    }
+
+    public void close() throws IOException {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        for (ReadCluster cluster : readClusters.values()) {
+            cluster.client.close();
+        }
+    }
+
+    public EsRestClient primary() {
+        return primary;
+    }
+
+    /**
+     * 主集群和全部只读集群的客户端
+     * @return
+     */
+    public List<EsRestClient> allClients() {
+        List<EsRestClient> clients = new ArrayList<>(readClusters.size() + 1);
+        clients.add(primary);
+        for (ReadCluster cluster : readClusters.values()) {
+            clients.add(cluster.client);
+        }
+        return clients;
+    }
+
+    /**
+     * 执行读操作：优先使用指定的或健康的只读集群，失败时切回主集群重试
+     * @param call
+     * @return
+     * @throws IOException
+     */
+    public <T> T read(CheckedFunction<EsRestClient, T, IOException> call) throws IOException {
+        ReadCluster cluster = selectRead();
+        if (cluster == null) {
+            return call.apply(primary);
+        }
+        try {
+            return call.apply(cluster.client);
+        } catch (IOException | ElasticsearchException e) {
+            if (!WriteSpool.isUnavailable(e)) {
+                throw e;
+            }
+            cluster.markUnhealthy(e.toString());
+            LOGGER.error("只读集群{}请求失败，切回主集群！", cluster.name, e);
+            return call.apply(primary);
+        }
+    }
+
+    /**
+     * 各只读集群的状态
+     * @return
+     */
+    public Map<String, Map<String, Object>> getStatus() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        for (ReadCluster cluster : readClusters.values()) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("healthy", cluster.healthy);
+            map.put("status", cluster.status);
+            map.put("lagMillis", cluster.lagMillis);
+            map.put("lastError", cluster.lastError);
+            result.put(cluster.name, map);
+        }
+        return result;
+    }
+
+    private ReadCluster selectRead() {
+        String name = CLUSTER.get();
+        if (PRIMARY.equals(name)) {
+            return null;
+        }
+        if (name != null) {
+            ReadCluster cluster = readClusters.get(name);
+            if (cluster == null) {
+                throw new IllegalArgumentException("未配置的集群：" + name);
+            }
+            return cluster.healthy ? cluster : null;
+        }
+        List<ReadCluster> healthy = new ArrayList<>(readClusters.size());
+        for (ReadCluster cluster : readClusters.values()) {
+            if (cluster.healthy) {
+                healthy.add(cluster);
+            }
+        }
+        if (healthy.isEmpty()) {
+            return null;
+        }
+        return healthy.get(Math.floorMod(next.getAndIncrement(), healthy.size()));
+    }
+
+    /**
+     * 检查各只读集群的状态和延迟，由start定时执行
+     */
+    void checkHealth() {
+        long heartbeat = System.currentTimeMillis();
+        boolean heartbeatWritten = maxLagMillis <= 0 || writeHeartbeat(heartbeat);
+        for (ReadCluster cluster : readClusters.values()) {
+            try {
+                ClusterHealthResponse health = cluster.client.cluster().health(new ClusterHealthRequest()
+                        .timeout(TimeValue.timeValueMillis(healthCheckIntervalMillis)), RequestOptions.DEFAULT);
+                cluster.status = health.getStatus().name();
+                if (health.getStatus() == ClusterHealthStatus.RED) {
+                    cluster.markUnhealthy("集群状态为red");
+                    continue;
+                }
+                if (maxLagMillis > 0) {
+                    if (!heartbeatWritten) {
+                        // 主集群不可用时无法判断延迟，保持原状态
+                        continue;
+                    }
+                    Long replicated = readHeartbeat(cluster);
+                    cluster.lagMillis = replicated == null ? null : Math.max(System.currentTimeMillis() - replicated, 0L);
+                    if (replicated == null || cluster.lagMillis > maxLagMillis) {
+                        cluster.markUnhealthy(replicated == null ? "心跳未复制" : "延迟" + cluster.lagMillis + "毫秒");
+                        continue;
+                    }
+                }
+                cluster.markHealthy();
+            } catch (IOException | ElasticsearchException e) {
+                cluster.markUnhealthy(e.toString());
+            }
+        }
+    }
+
+    private boolean writeHeartbeat(long timestamp) {
+        try {
+            IndexRequest request = new IndexRequest(heartbeatIndex).id(HEARTBEAT_ID)
+                    .source(Collections.singletonMap(HEARTBEAT_FIELD, timestamp));
+            primary.index(request, RequestOptions.DEFAULT);
+            return true;
+        } catch (IOException | ElasticsearchException e) {
+            LOGGER.error("主集群心跳写入失败！", e);
+            return false;
+        }
+    }
+
+    private Long readHeartbeat(ReadCluster cluster) throws IOException {
+        GetResponse response = cluster.client.get(new GetRequest(heartbeatIndex, HEARTBEAT_ID), RequestOptions.DEFAULT);
+        Object timestamp = response.isExists() ? response.getSourceAsMap().get(HEARTBEAT_FIELD) : null;
+        return timestamp instanceof Number ? ((Number) timestamp).longValue() : null;
+    }
+
+    private static class ReadCluster {
+        private final String name;
+        private final EsRestClient client;
+        private volatile boolean healthy;
+        private volatile String status;
+        private volatile Long lagMillis;
+        private volatile String lastError;
+
+        private ReadCluster(String name, EsRestClient client) {
+            this.name = name;
+            this.client = client;
+        }
+
+        private void markHealthy() {
+            if (!healthy) {
+                LOGGER.info("只读集群{}已恢复！", name);
+            }
+            healthy = true;
+            lastError = null;
+        }
+
+        private void markUnhealthy(String reason) {
+            if (healthy) {
+                LOGGER.error("只读集群{}不可用，查询切回主集群！原因: {}", name, reason);
+            }
+            healthy = false;
+            lastError = reason;
+        }
+    }
+}
@@ -1,12 +1,29 @@
 package cn.sign.elasticsearch;
 
+import cn.sign.enrich.EnrichRule;
+import cn.sign.enrich.HitEnricher;
 import cn.sign.utils.Utils;
+import com.alibaba.fastjson.JSONObject;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.util.EntityUtils;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.admin.cluster.node.tasks.cancel.CancelTasksRequest;
+import org.elasticsearch.action.admin.cluster.node.tasks.cancel.CancelTasksResponse;
+import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksResponse;
+import org.elasticsearch.action.admin.cluster.storedscripts.DeleteStoredScriptRequest;
+import org.elasticsearch.action.admin.cluster.storedscripts.PutStoredScriptRequest;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.open.OpenIndexRequest;
 import org.elasticsearch.action.admin.indices.open.OpenIndexResponse;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
@@ -21,45 +38,193 @@ import org.elasticsearch.action.support.master.AcknowledgedResponse;
 import org.elasticsearch.action.support.replication.ReplicationResponse;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RethrottleRequest;
+import org.elasticsearch.client.core.CountRequest;
 import org.elasticsearch.client.indices.*;
+import org.elasticsearch.client.indices.rollover.RolloverRequest;
+import org.elasticsearch.client.indices.rollover.RolloverResponse;
+import org.elasticsearch.client.tasks.TaskSubmissionResponse;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.regex.Regex;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.mapper.SeqNoFieldMapper;
 import org.elasticsearch.index.query.*;
+import org.elasticsearch.index.reindex.AbstractBulkByScrollRequest;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.index.reindex.ReindexRequest;
+import org.elasticsearch.index.reindex.UpdateByQueryRequest;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.Max;
+import org.elasticsearch.search.aggregations.metrics.Min;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.profile.SearchProfileShardResults;
 import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.search.suggest.SuggestBuilder;
+import org.elasticsearch.search.suggest.SuggestBuilders;
+import org.elasticsearch.search.suggest.completion.CompletionSuggestion;
+import org.elasticsearch.search.suggest.completion.CompletionSuggestionBuilder;
+import org.elasticsearch.tasks.TaskId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 
+import javax.annotation.PostConstruct;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Configuration
 public class ElasticClient implements Closeable {
 
     private static final String INDEX_KEY = "index";
+    private static final String ROUTING_KEY = "routing";
     private static final String INDEX = "test_index";
     private static final String TYPE = "_doc";
     private static final String TIMESTAMP = "timestamp";
     private static final String ANALYZER = "standard";
+    private static final String ROLLING_INDEX_SUFFIX = "-000001";
+    private static final Pattern VERSION_INDEX_PATTERN = Pattern.compile("^(.+)_v(\\d+)$");
+    private static final int REINDEX_BATCH_SIZE = 1000;
+    private static final long REINDEX_POLL_SECONDS = 5L;
+    private static final long FINISHED_TASK_RETAIN_MINUTES = 60L;
+    private static final String TASK_REINDEX = "reindex";
+    private static final String TASK_UPDATE_BY_QUERY = "update_by_query";
+    private static final String TASK_DELETE_BY_QUERY = "delete_by_query";
+    private static final String MUSTACHE_LANG = "mustache";
+    private static final String SUGGEST_NAME = "completion";
+    private static final int BULK_LOG_FAILURE_SAMPLES = 3;
+    private static final String INDEX_SORT_FIELD = "index.sort.field";
+    private static final String INDEX_SORT_ORDER = "index.sort.order";
+    private static final String INDEX_BLOCKS_WRITE = "index.blocks.write";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ElasticClient.class);
 
     @Autowired
-    private RestHighLevelClient client;
+    private EsRestClient client;
+
+    @Autowired
+    private WriteSpool writeSpool;
+
+    @Autowired
+    private WriteDeduplicator writeDeduplicator;
+
+    @Autowired
+    private HitEnricher hitEnricher;
+
+    @Autowired
+    private SlowLog slowLog;
+
+    @Autowired
+    private QueryOptimizer queryOptimizer;
+
+    @Autowired
+    private ClusterRouter clusterRouter;
+
+    // 全部成功的批量操作汇总日志的最小间隔
+    @Value("${es.bulk.logIntervalMillis:1000}")
+    private long bulkLogIntervalMillis;
+
+    // 重建索引时一轮补齐的文档数不超过该值(或达到最大轮数)后才禁止旧索引写入，补齐最后一轮
+    @Value("${es.reindex.catchUpMaxDocs:1000}")
+    private long reindexCatchUpMaxDocs;
+
+    @Value("${es.reindex.catchUpMaxRounds:10}")
+    private int reindexCatchUpMaxRounds;
+
+    // 旧索引禁止写入的最长时间，超过后放弃本次重建并恢复写入
+    @Value("${es.reindex.blockTimeoutMillis:300000}")
+    private long reindexBlockTimeoutMillis;
+
+    // 记录禁止写入的旧索引，重启后恢复写入
+    @Value("${es.reindex.blockIndex:es_reindex_block}")
+    private String reindexBlockIndex;
+
+    private final AtomicLong lastBulkLog = new AtomicLong();
+    private final AtomicInteger suppressedBulkLogs = new AtomicInteger();
+
+    /**
+     * 已滚动(不再写入)索引的时间范围缓存，key为索引名，value为[最小时间戳, 最大时间戳]
+     */
+    private final Map<String, long[]> indexTimeRanges = new ConcurrentHashMap<>();
+
+    /**
+     * 后台重建索引任务，key为es任务id，结束FINISHED_TASK_RETAIN_MINUTES分钟后移除
+     */
+    private final Map<String, ReindexTask> reindexTasks = new ConcurrentHashMap<>();
+
+    /**
+     * 后台任务类型(reindex/update_by_query/delete_by_query)，key为es任务id，用于调整限流
+     */
+    private final Map<String, String> taskTypes = new ConcurrentHashMap<>();
+
+    /**
+     * 索引排序配置缓存，key为索引名或别名，value为"字段:排序方向"列表
+     */
+    private final Map<String, List<String>> indexSorts = new ConcurrentHashMap<>();
+
+    /**
+     * 已存储的脚本，key为脚本id，value为脚本内容
+     */
+    private final Map<String, String> storedScripts = new ConcurrentHashMap<>();
+
+    /**
+     * 查询结构序列化缓存，key为查询结构名，value为序列化后的查询语句
+     */
+    private final Map<String, String> queryShapes = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService taskScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "es-task-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 启动后在后台恢复上次运行中遗留的旧索引写入限制
+     */
+    @PostConstruct
+    public void init() {
+        taskScheduler.execute(this::releaseStaleBlocks);
+    }
 
     @Override
     public void close() throws IOException {
+        taskScheduler.shutdownNow();
         if (Objects.nonNull(client)) {
             client.close();
         }
@@ -94,6 +259,18 @@ public class ElasticClient implements Closeable {
      * @throws IOException
      */
     public void createIndex(String indexName, String mapping, String setting) throws IOException {
+        createIndex(indexName, mapping, setting, Collections.emptyMap());
+    }
+
+    /**
+     * 创建排序索引(段内文档按索引排序存储，与之一致的查询排序可提前终止)
+     * @param indexName
+     * @param mapping mapping配置
+     * @param setting setting配置
+     * @param indexSort 索引排序字段及方向(按插入顺序生效，建议使用LinkedHashMap)
+     * @throws IOException
+     */
+    public void createIndex(String indexName, String mapping, String setting, Map<String, SortOrder> indexSort) throws IOException {
         if (checkIndexExists(indexName)) {
             LOGGER.error("\"index={}\"索引已经存在！", indexName);
             return;
@@ -108,7 +285,17 @@ public class ElasticClient implements Closeable {
             return;
         }
         request.mapping(mapping,XContentType.JSON);
-        request.settings(setting,XContentType.JSON);
+        Settings.Builder settings = Settings.builder().loadFromSource(setting, XContentType.JSON);
+        if (!indexSort.isEmpty()) {
+            List<String> orders = new ArrayList<>();
+            for (SortOrder order : indexSort.values()) {
+                orders.add(order.toString());
+            }
+            settings.putList(INDEX_SORT_FIELD, new ArrayList<>(indexSort.keySet()));
+            settings.putList(INDEX_SORT_ORDER, orders);
+        }
+        request.settings(settings);
+        forgetIndexSorts();
 
 //        request.mapping(generateMappingProperties(map));
 
@@ -142,6 +329,96 @@ public class ElasticClient implements Closeable {
         }
     }
 
+    /**
+     * 创建自动补全索引，field为completion字段：前缀匹配在内存中的FST上完成，不遍历词典
+     * @param indexName
+     * @param field 补全字段，写入时为字符串或{"input": [...], "weight": n}
+     * @throws IOException
+     */
+    public void createSuggestIndex(String indexName, String field) throws IOException {
+        if (checkIndexExists(indexName)) {
+            LOGGER.error("\"index={}\"索引已经存在！", indexName);
+            return;
+        }
+        XContentBuilder mapping = XContentFactory.jsonBuilder().startObject()
+                .startObject("properties")
+                .startObject(field)
+                .field("type", "completion")
+                .field("analyzer", "simple")
+                .field("max_input_length", 50)
+                .endObject()
+                .endObject()
+                .endObject();
+        CreateIndexRequest request = new CreateIndexRequest(indexName);
+        request.mapping(mapping);
+        CreateIndexResponse response = client.indices().create(request, RequestOptions.DEFAULT);
+        if (response.isAcknowledged() || response.isShardsAcknowledged()) {
+            LOGGER.info("创建自动补全索引成功！索引名称为{}", indexName);
+        }
+    }
+
+    /**
+     * 创建按时间滚动的索引(首个索引为alias-000001，并将alias设置为其写别名)
+     * @param alias 写别名，后续读写都通过该别名进行
+     * @param mapping mapping配置
+     * @param setting setting配置
+     * @throws IOException
+     */
+    public void createRollingIndex(String alias, String mapping, String setting) throws IOException {
+        if (checkIndexExists(alias)) {
+            LOGGER.error("\"alias={}\"别名已经存在！", alias);
+            return;
+        }
+        if (!Utils.validate(mapping) || !Utils.validate(setting)) {
+            LOGGER.error("非法的json字符串！");
+            return;
+        }
+        String indexName = alias + ROLLING_INDEX_SUFFIX;
+        CreateIndexRequest request = new CreateIndexRequest(indexName);
+        request.mapping(mapping, XContentType.JSON);
+        request.settings(setting, XContentType.JSON);
+        request.alias(new Alias(alias).writeIndex(true));
+        forgetIndexSorts();
+        CreateIndexResponse response = client.indices().create(request, RequestOptions.DEFAULT);
+        if (response.isAcknowledged() || response.isShardsAcknowledged()) {
+            LOGGER.info("创建滚动索引成功！索引名称为{}, 写别名为{}", indexName, alias);
+        }
+    }
+
+    /**
+     * 滚动索引，满足任一条件时创建新索引并将写别名指向新索引
+     * @param alias 写别名
+     * @param maxAge 索引最大存活时间(为空则不限制)
+     * @param maxSize 索引主分片最大容量(为空则不限制)
+     * @param maxDocs 索引最大文档数(为空则不限制)
+     * @return 是否发生了滚动
+     * @throws IOException
+     */
+    public boolean rolloverIndex(String alias, TimeValue maxAge, ByteSizeValue maxSize, Long maxDocs) throws IOException {
+        RolloverRequest request = new RolloverRequest(alias, null);
+        if (Objects.nonNull(maxAge)) {
+            request.addMaxIndexAgeCondition(maxAge);
+        }
+        if (Objects.nonNull(maxSize)) {
+            request.addMaxIndexSizeCondition(maxSize);
+        }
+        if (Objects.nonNull(maxDocs)) {
+            request.addMaxIndexDocsCondition(maxDocs);
+        }
+        if (request.getConditions().isEmpty()) {
+            LOGGER.error("未设置滚动条件！");
+            return false;
+        }
+        RolloverResponse response = client.indices().rollover(request, RequestOptions.DEFAULT);
+        if (response.isRolledOver()) {
+            LOGGER.info("索引滚动成功！{} -> {}", response.getOldIndex(), response.getNewIndex());
+            // 旧索引已不再写入，其时间范围在下次查询时重新统计
+            indexTimeRanges.remove(response.getOldIndex());
+            forgetIndexSorts();
+        }
+        return response.isRolledOver();
+    }
+
     /**
      * 删除索引
      * @param indexName
@@ -151,10 +428,14 @@ public class ElasticClient implements Closeable {
         try {
             AcknowledgedResponse response = client.indices().delete(new DeleteIndexRequest(indexName), RequestOptions.DEFAULT);
             if (response.isAcknowledged()) {
+                forgetIndexTimeRanges(indexName);
+                forgetIndexSorts();
                 LOGGER.info("{} 索引删除成功！", indexName);
             }
         } catch (ElasticsearchException ex) {
             if (ex.status() == RestStatus.NOT_FOUND) {
+                forgetIndexTimeRanges(indexName);
+                forgetIndexSorts();
                 LOGGER.error("{} 索引名不存在", indexName);
             }
             LOGGER.error("删除失败！");
@@ -162,201 +443,957 @@ public class ElasticClient implements Closeable {
     }
 
     /**
-     * 判断索引是否存在
-     * @param indexName
-     * @return
+     * 不停机重建索引：按新的mapping/setting创建版本索引(alias_vN)，后台以sliced reindex并行拷贝数据。
+     * 全量拷贝完成后按_seq_no分轮补齐拷贝期间的新增和修改(旧索引正常读写)，并删除新索引中多出的文档，
+     * 直到一轮的文档数不超过catchUpMaxDocs；之后旧索引短暂禁止写入，补齐最后一轮后原子切换别名。
+     * 禁止写入期间写入别名的请求返回403，开启暂存区时写入暂存区，切换后回放到新索引。
+     * 禁止写入记录在blockIndex索引中，超过blockTimeoutMillis或重启后恢复写入；失败或取消时别名不变
+     * @param alias 读写别名(必须只指向一个旧索引)
+     * @param mapping 新索引mapping配置
+     * @param setting 新索引setting配置
+     * @param requestsPerSecond 每秒请求数限流，小于等于0则不限流
+     * @param deleteSourceIndex 切换别名后是否删除旧索引
+     * @return es任务id，可通过getTaskStatus查询进度；失败返回null
      * @throws IOException
      */
-    public boolean checkIndexExists(String indexName) {
-        GetIndexRequest request = new GetIndexRequest(indexName);
-        try {
-            return client.indices().exists(request, RequestOptions.DEFAULT);
-        } catch (IOException e) {
-            LOGGER.error("操作异常！");
+    public String reindex(String alias, String mapping, String setting, float requestsPerSecond, boolean deleteSourceIndex) throws IOException {
+        if (!Utils.validate(mapping) || !Utils.validate(setting)) {
+            LOGGER.error("非法的json字符串！");
+            return null;
         }
-        return false;
+        GetAliasesResponse aliasesResponse = client.indices().getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT);
+        Set<String> indices = aliasesResponse.getAliases().keySet();
+        if (indices.size() != 1) {
+            LOGGER.error("\"alias={}\"必须是只指向一个索引的别名！", alias);
+            return null;
+        }
+        String sourceIndex = indices.iterator().next();
+        String destIndex = nextVersionIndex(alias, sourceIndex);
+        createIndex(destIndex, mapping, setting);
+        if (!checkIndexExists(destIndex)) {
+            LOGGER.error("\"index={}\"新版本索引创建失败！", destIndex);
+            return null;
+        }
+
+        long startTime = System.currentTimeMillis();
+        // 全量拷贝之后的变更_seq_no都大于该值
+        long checkpoint = seqNoCheckpoint(sourceIndex);
+        ReindexRequest request = new ReindexRequest();
+        request.setSourceIndices(sourceIndex);
+        request.setDestIndex(destIndex);
+        // 保留源文档版本号，补齐阶段只覆盖版本更新的文档(新索引在切换别名前不接受其他写入)
+        request.setDestVersionType(VersionType.EXTERNAL);
+        request.setConflicts("proceed");
+        request.setSourceBatchSize(REINDEX_BATCH_SIZE);
+        request.setSlices(AbstractBulkByScrollRequest.AUTO_SLICES);
+        if (requestsPerSecond > 0) {
+            request.setRequestsPerSecond(requestsPerSecond);
+        }
+        TaskSubmissionResponse response = client.submitReindexTask(request, RequestOptions.DEFAULT);
+
+        ReindexTask task = new ReindexTask();
+        task.setAlias(alias);
+        task.setSourceIndex(sourceIndex);
+        task.setDestIndex(destIndex);
+        task.setTaskId(response.getTask());
+        task.setDeleteSourceIndex(deleteSourceIndex);
+        task.setStartTime(startTime);
+        task.setSeqNoCheckpoint(checkpoint);
+        task.setState(ReindexTask.State.RUNNING);
+        reindexTasks.put(task.getTaskId(), task);
+        taskTypes.put(task.getTaskId(), TASK_REINDEX);
+        taskScheduler.schedule(() -> pollReindexTask(task), REINDEX_POLL_SECONDS, TimeUnit.SECONDS);
+        LOGGER.info("重建索引任务已提交！{} -> {}, task: {}", sourceIndex, destIndex, task.getTaskId());
+        return task.getTaskId();
     }
 
     /**
-     * 开启索引
-     * @param indexName
+     * 查询es后台任务进度
+     * @param taskId es任务id(node:id)
+     * @return completed、total、created、updated、deleted、batches、version_conflicts、failures，重建索引任务另含state
      * @throws IOException
      */
-    public void openIndex(String indexName) throws IOException{
-        if (!checkIndexExists(indexName)) {
-            LOGGER.error("索引不存在！");
-            return;
+    public Map<String, Object> getTaskStatus(String taskId) throws IOException {
+        Response response = client.getLowLevelClient().performRequest(new Request("GET", "/_tasks/" + taskId));
+        JSONObject json = JSONObject.parseObject(EntityUtils.toString(response.getEntity()));
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("completed", json.getBooleanValue("completed"));
+        JSONObject task = json.getJSONObject("task");
+        JSONObject status = Objects.isNull(task) ? null : task.getJSONObject("status");
+        if (Objects.nonNull(status)) {
+            for (String key : new String[]{"total", "created", "updated", "deleted", "batches", "version_conflicts"}) {
+                result.put(key, status.getLongValue(key));
+            }
         }
-        OpenIndexRequest request = new OpenIndexRequest(indexName);
-        OpenIndexResponse response = client.indices().open(request, RequestOptions.DEFAULT);
-        if (response.isAcknowledged() || response.isShardsAcknowledged()) {
-            LOGGER.info("{} 索引开启成功！", indexName);
+        JSONObject taskResponse = json.getJSONObject("response");
+        if (Objects.nonNull(taskResponse) && Objects.nonNull(taskResponse.getJSONArray("failures"))) {
+            result.put("failures", taskResponse.getJSONArray("failures"));
+        }
+        if (json.containsKey("error")) {
+            result.put("error", json.get("error"));
         }
+        ReindexTask reindexTask = reindexTasks.get(taskId);
+        if (Objects.nonNull(reindexTask)) {
+            result.put("state", reindexTask.getState());
+        }
+        return result;
     }
 
     /**
-     * 关闭索引
-     * @param indexName
+     * 后台按查询批量更新文档(slices=auto并行，冲突时继续)
+     * @param index 索引
+     * @param query 查询条件
+     * @param script 更新脚本，建议使用存储脚本加params
+     * @param requestsPerSecond 每秒请求数限流，小于等于0则不限流
+     * @return es任务id，可通过getTaskStatus查询进度，rethrottleTask调整限流，cancelTask取消
      * @throws IOException
      */
-    public void closeIndex(String indexName) throws IOException {
-        if (!checkIndexExists(indexName)) {
-            LOGGER.error("索引不存在！");
-            return;
+    public String submitUpdateByQuery(String index, QueryBuilder query, Script script, float requestsPerSecond) throws IOException {
+        UpdateByQueryRequest updateByQuery = new UpdateByQueryRequest(index);
+        updateByQuery.setQuery(query);
+        if (Objects.nonNull(script)) {
+            updateByQuery.setScript(script);
         }
-        CloseIndexRequest request = new CloseIndexRequest(indexName);
-        CloseIndexResponse response = client.indices().close(request, RequestOptions.DEFAULT);
-        if (response.isAcknowledged()) {
-            LOGGER.info("{} 索引已关闭！", indexName);
+        // 7.5的高级客户端没有异步提交update_by_query的接口，使用低级客户端提交
+        Request request = new Request("POST", "/" + index + "/_update_by_query");
+        request.addParameter("wait_for_completion", "false");
+        request.addParameter("slices", AbstractBulkByScrollRequest.AUTO_SLICES_VALUE);
+        request.addParameter("conflicts", "proceed");
+        if (requestsPerSecond > 0) {
+            request.addParameter("requests_per_second", String.valueOf(requestsPerSecond));
         }
+        request.setJsonEntity(Strings.toString(updateByQuery));
+        // 被修改的文档未知，提交前暂停去重，任务结束后恢复
+        writeDeduplicator.suspend();
+        String taskId;
+        try {
+            Response response = client.getLowLevelClient().performRequest(request);
+            taskId = JSONObject.parseObject(EntityUtils.toString(response.getEntity())).getString("task");
+        } catch (IOException | RuntimeException e) {
+            writeDeduplicator.resume();
+            throw e;
+        }
+        taskTypes.put(taskId, TASK_UPDATE_BY_QUERY);
+        taskScheduler.schedule(() -> pollByQueryTask(taskId), REINDEX_POLL_SECONDS, TimeUnit.SECONDS);
+        LOGGER.info("按查询更新任务已提交！index: {}, task: {}", index, taskId);
+        return taskId;
     }
 
-
-
     /**
-     * 设置文档映射(设置字段的数据类型)
-     * @param index
+     * 后台按查询批量删除文档(slices=auto并行，冲突时继续)
+     * @param index 索引
+     * @param query 查询条件
+     * @param requestsPerSecond 每秒请求数限流，小于等于0则不限流
+     * @return es任务id，可通过getTaskStatus查询进度，rethrottleTask调整限流，cancelTask取消
      * @throws IOException
      */
-    public void setMapping(String index, Map<String, Object> fields) {
-        if (!checkIndexExists(index)) {
-            LOGGER.error("索引不存在！");
-            return;
+    public String submitDeleteByQuery(String index, QueryBuilder query, float requestsPerSecond) throws IOException {
+        DeleteByQueryRequest request = new DeleteByQueryRequest(index);
+        request.setQuery(query);
+        request.setSlices(AbstractBulkByScrollRequest.AUTO_SLICES);
+        request.setConflicts("proceed");
+        if (requestsPerSecond > 0) {
+            request.setRequestsPerSecond(requestsPerSecond);
         }
-        PutMappingRequest request = new PutMappingRequest(index);
+        writeDeduplicator.suspend();
+        TaskSubmissionResponse response;
         try {
-//            request.source(source, XContentType.JSON);
-//            request.source(generateMappingProperties(fields));
-            request.source(fields);
-            AcknowledgedResponse response = client.indices().putMapping(request, RequestOptions.DEFAULT);
-            if (response.isAcknowledged()) {
-                LOGGER.info("已成功对\"index={}\"的文档设置类型映射！", index);
+            response = client.submitDeleteByQueryTask(request, RequestOptions.DEFAULT);
+        } catch (IOException | RuntimeException e) {
+            writeDeduplicator.resume();
+            throw e;
+        }
+        taskTypes.put(response.getTask(), TASK_DELETE_BY_QUERY);
+        taskScheduler.schedule(() -> pollByQueryTask(response.getTask()), REINDEX_POLL_SECONDS, TimeUnit.SECONDS);
+        LOGGER.info("按查询删除任务已提交！index: {}, task: {}", index, response.getTask());
+        return response.getTask();
+    }
+
+    /**
+     * 轮询按查询更新/删除任务，结束(完成、失败或取消)后恢复写入去重
+     * @param taskId
+     */
+    private void pollByQueryTask(String taskId) {
+        try {
+            if (!Boolean.TRUE.equals(getTaskStatus(taskId).get("completed"))) {
+                taskScheduler.schedule(() -> pollByQueryTask(taskId), REINDEX_POLL_SECONDS, TimeUnit.SECONDS);
+                return;
             }
-        } catch (IOException e) {
-            LOGGER.error("\"index={}\"的文档设置类型映射失败！", index);
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() != RestStatus.NOT_FOUND.getStatus()) {
+                LOGGER.error("任务状态查询失败！task: {}", taskId, e);
+                taskScheduler.schedule(() -> pollByQueryTask(taskId), REINDEX_POLL_SECONDS, TimeUnit.SECONDS);
+                return;
+            }
+            // 任务已不存在，视为结束
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("任务状态查询失败！task: {}", taskId, e);
+            taskScheduler.schedule(() -> pollByQueryTask(taskId), REINDEX_POLL_SECONDS, TimeUnit.SECONDS);
+            return;
         }
+        taskTypes.remove(taskId);
+        writeDeduplicator.resume();
+        LOGGER.info("按查询修改任务已结束，恢复写入去重！task: {}", taskId);
     }
 
     /**
-     * 创建mapping语句
-     * @param fields
-     * @return
+     * 调整后台任务的限流
+     * @param taskId es任务id
+     * @param requestsPerSecond 每秒请求数，小于等于0则取消限流
+     * @return 是否调整成功
      * @throws IOException
      */
-//    private XContentBuilder generateMappingProperties(Map<String, Map<String, String>> fields) throws IOException {
-//
-//        XContentBuilder builder = XContentFactory.jsonBuilder();
-//        builder.startObject();
-//        builder.startObject("properties");
-//
-//        if (!fields.isEmpty()){
-//            for (Map.Entry<String, Map<String, String>> field: fields.entrySet()) {
-//                if (null != field.getKey()){
-//                    builder.startObject(field.getKey());
-//                    if (!field.getValue().isEmpty()){
-//                        for (Map.Entry<String, String> filed : field.getValue().entrySet()){
-//                            String pro = filed.getKey();
-//                            String value = filed.getValue();
-//                            if( null != pro && null != value) {
-//                                builder.field(pro,value);
-//                            }
-//                        }
-//                    }
-//                    builder.endObject();
-//                }
-//            }
-//        }
-//        builder.endObject();
-//        builder.endObject();
-//        return builder;
-//    }
+    public boolean rethrottleTask(String taskId, float requestsPerSecond) throws IOException {
+        String type = taskTypes.get(taskId);
+        if (Objects.isNull(type)) {
+            LOGGER.error("未知的任务！task: {}", taskId);
+            return false;
+        }
+        TaskId id = new TaskId(taskId);
+        RethrottleRequest request = requestsPerSecond > 0 ? new RethrottleRequest(id, requestsPerSecond) : new RethrottleRequest(id);
+        ListTasksResponse response;
+        if (TASK_REINDEX.equals(type)) {
+            response = client.reindexRethrottle(request, RequestOptions.DEFAULT);
+        } else if (TASK_UPDATE_BY_QUERY.equals(type)) {
+            response = client.updateByQueryRethrottle(request, RequestOptions.DEFAULT);
+        } else {
+            response = client.deleteByQueryRethrottle(request, RequestOptions.DEFAULT);
+        }
+        if (!response.getTaskFailures().isEmpty() || !response.getNodeFailures().isEmpty()) {
+            LOGGER.error("任务限流调整失败！task: {}, {}", taskId, response.getTaskFailures());
+            return false;
+        }
+        LOGGER.info("任务限流已调整！task: {}, requests_per_second: {}", taskId, requestsPerSecond);
+        return true;
+    }
 
     /**
-     * 增加文档
-     * @param indexName
-     * @param id
-     * @param jsonString
+     * 取消后台任务(已处理的文档不会回滚)
+     * @param taskId es任务id
+     * @return 是否取消成功
+     * @throws IOException
      */
-    public void addDocByJson(String indexName, String id, String jsonString) throws IOException{
-        if (!Utils.validate(jsonString)) {
-            LOGGER.error("非法的json字符串！");
-            return;
+    public boolean cancelTask(String taskId) throws IOException {
+        ReindexTask reindexTask = reindexTasks.get(taskId);
+        // 补齐阶段全量拷贝任务已结束，取消的是补齐任务
+        String runningTaskId = Objects.nonNull(reindexTask) && (reindexTask.getState() == ReindexTask.State.CATCHING_UP
+                || reindexTask.getState() == ReindexTask.State.FINALIZING) ? reindexTask.getCatchUpTaskId() : taskId;
+        CancelTasksRequest request = new CancelTasksRequest();
+        request.setTaskId(new TaskId(runningTaskId));
+        CancelTasksResponse response = client.tasks().cancel(request, RequestOptions.DEFAULT);
+        if (!response.getTaskFailures().isEmpty() || !response.getNodeFailures().isEmpty()) {
+            LOGGER.error("任务取消失败！task: {}, {}", taskId, response.getTaskFailures());
+            return false;
         }
-        if (!checkIndexExists(indexName)) {
-            createIndex(indexName);
+        if (Objects.nonNull(reindexTask)) {
+            // 轮询线程发现取消后恢复旧索引写入
+            reindexTask.setState(ReindexTask.State.CANCELLED);
         }
+        taskTypes.remove(runningTaskId);
+        LOGGER.info("任务已取消！task: {}", taskId);
+        return true;
+    }
 
-        IndexRequest request=new IndexRequest(indexName);
-        request.id(id).opType("create").source(jsonString, XContentType.JSON);
-        // request的opType默认是INDEX(传入相同id会覆盖原document，CREATE则会将旧的删除)
-        // request.opType(DocWriteRequest.OpType.CREATE)
-        IndexResponse response = null;
+    /**
+     * 轮询重建索引任务：全量拷贝完成后分轮补齐，一轮的文档数足够少后禁止旧索引写入补齐最后一轮，完成后切换别名
+     * @param task
+     */
+    private void pollReindexTask(ReindexTask task) {
+        if (task.getState() == ReindexTask.State.CANCELLED) {
+            releaseSourceBlock(task);
+            finishReindexTask(task);
+            LOGGER.info("重建索引任务已取消！task: {}", task.getTaskId());
+            return;
+        }
+        ReindexTask.State state = task.getState();
         try {
-            response = client.index(request, RequestOptions.DEFAULT);
-
-            String index = response.getIndex();
-            String documentId = response.getId();
-            if (response.getResult() == DocWriteResponse.Result.CREATED) {
-                LOGGER.info("新增文档成功！ index: {}, id: {}", index , documentId);
-            } else if (response.getResult() == DocWriteResponse.Result.UPDATED) {
-                LOGGER.info("修改文档成功！ index: {}, id: {}", index , documentId);
+            String runningTaskId = state == ReindexTask.State.RUNNING ? task.getTaskId() : task.getCatchUpTaskId();
+            Map<String, Object> status = getTaskStatus(runningTaskId);
+            if (!Boolean.TRUE.equals(status.get("completed"))) {
+                if (state == ReindexTask.State.FINALIZING && System.currentTimeMillis() - task.getBlockedAt() > reindexBlockTimeoutMillis) {
+                    cancelTask(task.getTaskId());
+                    failReindexTask(task, null);
+                    LOGGER.error("旧索引禁止写入超过{}毫秒，放弃重建索引！task: {}", reindexBlockTimeoutMillis, task.getTaskId());
+                    return;
+                }
+                taskScheduler.schedule(() -> pollReindexTask(task), REINDEX_POLL_SECONDS, TimeUnit.SECONDS);
+                return;
             }
-            // 分片处理信息
-            ReplicationResponse.ShardInfo shardInfo = response.getShardInfo();
-            if (shardInfo.getTotal() != shardInfo.getSuccessful()) {
-                LOGGER.error("文档未写入全部分片副本！");
+            taskTypes.remove(runningTaskId);
+            Object failures = status.get("failures");
+            if (status.containsKey("error") || (failures instanceof List && !((List) failures).isEmpty())) {
+                failReindexTask(task, null);
+                LOGGER.error("重建索引任务失败！task: {}, 失败详情: {}", task.getTaskId(), status);
+                return;
             }
-            // 如果有分片副本失败，可以获得失败原因信息
-            if (shardInfo.getFailed() > 0) {
-                for (ReplicationResponse.ShardInfo.Failure failure : shardInfo.getFailures()) {
-                    String reason = failure.reason();
-                    LOGGER.error("副本失败原因：{}", reason);
-                }
+            if (state == ReindexTask.State.FINALIZING) {
+                switchReindexAlias(task);
+                return;
             }
-        } catch (ElasticsearchException e) {
-            if (e.status() == RestStatus.CONFLICT) {
-                LOGGER.error("版本异常！");
+            long copied = status.get("total") instanceof Number ? ((Number) status.get("total")).longValue() : Long.MAX_VALUE;
+            boolean lastRound = state == ReindexTask.State.CATCHING_UP
+                    && (copied <= reindexCatchUpMaxDocs || task.getCatchUpRounds() >= reindexCatchUpMaxRounds);
+            if (lastRound) {
+                // 旧索引仍可写入时先删除多出的文档，禁止写入后只需处理最后一轮的删除
+                removeDeletedDocuments(task.getSourceIndex(), task.getDestIndex());
             }
-            LOGGER.error("文档新增失败！");
+            startCatchUp(task, lastRound);
+        } catch (Exception e) {
+            failReindexTask(task, e);
         }
     }
 
     /**
-     * 查找文档
-     * @param index
-     * @param id
-     * @return
+     * 提交一轮补齐任务：按版本号覆盖_seq_no大于上一轮起点的文档；最后一轮先禁止旧索引写入
+     * @param task
+     * @param lastRound 是否最后一轮
      * @throws IOException
      */
-    public Map<String, Object> getDocument(String index, String id) throws IOException{
-        Map<String, Object> resultMap = new HashMap<>();
-        GetRequest request = new GetRequest(index, id);
-        // 实时(否)
-        request.realtime(false);
-        // 检索之前执行刷新(是)
-        request.refresh(true);
+    private void startCatchUp(ReindexTask task, boolean lastRound) throws IOException {
+        if (lastRound) {
+            blockSource(task);
+        }
+        long from = task.getSeqNoCheckpoint();
+        // 先取下一轮的起点再刷新，起点之前的写入在本轮都可以被查到
+        long next = seqNoCheckpoint(task.getSourceIndex());
+        client.indices().refresh(new RefreshRequest(task.getSourceIndex()), RequestOptions.DEFAULT);
 
-        GetResponse response = null;
-        try {
-            response = client.get(request, RequestOptions.DEFAULT);
-        } catch (ElasticsearchException e) {
-            if (e.status() == RestStatus.NOT_FOUND) {
-                LOGGER.error("文档未找到！" );
-            }
-            if (e.status() == RestStatus.CONFLICT) {
-                LOGGER.error("版本冲突！" );
-            }
+        ReindexRequest request = new ReindexRequest();
+        request.setSourceIndices(task.getSourceIndex());
+        request.setDestIndex(task.getDestIndex());
+        request.setSourceQuery(QueryBuilders.rangeQuery(SeqNoFieldMapper.NAME).gt(from));
+        // 版本号不大于新索引中的文档会产生冲突并跳过
+        request.setDestVersionType(VersionType.EXTERNAL);
+        request.setConflicts("proceed");
+        request.setSourceBatchSize(REINDEX_BATCH_SIZE);
+        request.setSlices(AbstractBulkByScrollRequest.AUTO_SLICES);
+        TaskSubmissionResponse response = client.submitReindexTask(request, RequestOptions.DEFAULT);
+        task.setCatchUpTaskId(response.getTask());
+        task.setSeqNoCheckpoint(next);
+        task.setCatchUpRounds(task.getCatchUpRounds() + 1);
+        taskTypes.put(response.getTask(), TASK_REINDEX);
+        if (task.getState() == ReindexTask.State.CANCELLED) {
+            // 提交补齐任务期间被取消，下次轮询时恢复旧索引写入
+            cancelTask(response.getTask());
+        } else {
+            task.setState(lastRound ? ReindexTask.State.FINALIZING : ReindexTask.State.CATCHING_UP);
+        }
+        taskScheduler.schedule(() -> pollReindexTask(task), REINDEX_POLL_SECONDS, TimeUnit.SECONDS);
+        LOGGER.info("第{}轮补齐任务已提交！{} -> {}, _seq_no > {}, 旧索引{}, task: {}", task.getCatchUpRounds(), task.getSourceIndex(),
+                task.getDestIndex(), from, lastRound ? "已禁止写入" : "正常写入", response.getTask());
+    }
+
+    /**
+     * 删除拷贝期间在旧索引中被删除的文档，原子切换别名到新索引，并按需删除旧索引
+     * @param task
+     * @throws IOException
+     */
+    private void switchReindexAlias(ReindexTask task) throws IOException {
+        long removed = removeDeletedDocuments(task.getSourceIndex(), task.getDestIndex());
+        if (removed > 0) {
+            LOGGER.info("已删除拷贝期间被删除的文档！index: {}, 数量: {}", task.getDestIndex(), removed);
+        }
+        client.indices().refresh(new RefreshRequest(task.getDestIndex()), RequestOptions.DEFAULT);
+        IndicesAliasesRequest aliasesRequest = new IndicesAliasesRequest();
+        aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.remove().index(task.getSourceIndex()).alias(task.getAlias()));
+        aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.add().index(task.getDestIndex()).alias(task.getAlias()).writeIndex(true));
+        AcknowledgedResponse aliasesResponse = client.indices().updateAliases(aliasesRequest, RequestOptions.DEFAULT);
+        forgetIndexSorts();
+        if (!aliasesResponse.isAcknowledged()) {
+            failReindexTask(task, null);
+            LOGGER.error("别名切换失败！{} -> {}", task.getSourceIndex(), task.getDestIndex());
+            return;
+        }
+        task.setState(ReindexTask.State.SWITCHED);
+        LOGGER.info("别名切换成功！alias: {}, {} -> {}", task.getAlias(), task.getSourceIndex(), task.getDestIndex());
+
+        if (Boolean.TRUE.equals(task.getDeleteSourceIndex())) {
+            deleteIndex(task.getSourceIndex());
+            task.setSourceBlocked(false);
+            deleteBlockRecord(task.getSourceIndex());
+        } else {
+            releaseSourceBlock(task);
+        }
+        finishReindexTask(task);
+    }
+
+    /**
+     * 删除新索引中有、旧索引中已不存在的文档(旧索引已禁止写入，新索引包含旧索引的全部文档)
+     * @param sourceIndex
+     * @param destIndex
+     * @return 删除的文档数
+     * @throws IOException
+     */
+    private long removeDeletedDocuments(String sourceIndex, String destIndex) throws IOException {
+        client.indices().refresh(new RefreshRequest(sourceIndex, destIndex), RequestOptions.DEFAULT);
+        long extra = client.count(new CountRequest(destIndex), RequestOptions.DEFAULT).getCount()
+                - client.count(new CountRequest(sourceIndex), RequestOptions.DEFAULT).getCount();
+        long removed = 0L;
+        if (extra <= 0) {
+            return removed;
+        }
+        SearchRequest scrollRequest = new SearchRequest(destIndex);
+        scrollRequest.scroll(TimeValue.timeValueMinutes(1L));
+        scrollRequest.source(new SearchSourceBuilder().size(REINDEX_BATCH_SIZE).fetchSource(false).sort("_doc"));
+        SearchResponse response = client.search(scrollRequest, RequestOptions.DEFAULT);
+        try {
+            while (removed < extra && response.getHits().getHits().length > 0) {
+                SearchHit[] hits = response.getHits().getHits();
+                String[] ids = new String[hits.length];
+                for (int i = 0; i < hits.length; i++) {
+                    ids[i] = hits[i].getId();
+                }
+                SearchRequest existsRequest = new SearchRequest(sourceIndex);
+                existsRequest.source(new SearchSourceBuilder().query(QueryBuilders.idsQuery().addIds(ids))
+                        .size(ids.length).fetchSource(false));
+                Set<String> existing = new HashSet<>();
+                for (SearchHit hit : client.search(existsRequest, RequestOptions.DEFAULT).getHits().getHits()) {
+                    existing.add(hit.getId());
+                }
+                BulkRequest bulkRequest = new BulkRequest();
+                for (SearchHit hit : hits) {
+                    if (!existing.contains(hit.getId())) {
+                        DeleteRequest deleteRequest = new DeleteRequest(destIndex, hit.getId());
+                        if (Objects.nonNull(hit.field("_routing"))) {
+                            deleteRequest.routing(hit.field("_routing").getValue());
+                        }
+                        bulkRequest.add(deleteRequest);
+                    }
+                }
+                if (bulkRequest.numberOfActions() > 0) {
+                    BulkResponse bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+                    if (bulkResponse.hasFailures()) {
+                        throw new IOException("删除多出的文档失败：" + bulkResponse.buildFailureMessage());
+                    }
+                    removed += bulkRequest.numberOfActions();
+                }
+                response = client.scroll(new SearchScrollRequest(response.getScrollId()).scroll(TimeValue.timeValueMinutes(1L)),
+                        RequestOptions.DEFAULT);
+            }
+        } finally {
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(response.getScrollId());
+            client.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+        }
+        return removed;
+    }
+
+    /**
+     * 任务失败：恢复旧索引写入，别名保持指向旧索引
+     * @param task
+     * @param e 异常，可为空
+     */
+    private void failReindexTask(ReindexTask task, Exception e) {
+        task.setState(ReindexTask.State.FAILED);
+        if (Objects.nonNull(e)) {
+            LOGGER.error("重建索引任务异常！task: {}", task.getTaskId(), e);
+        }
+        releaseSourceBlock(task);
+        finishReindexTask(task);
+    }
+
+    /**
+     * 任务结束：清理任务类型，保留FINISHED_TASK_RETAIN_MINUTES分钟供查询状态后移除
+     * @param task
+     */
+    private void finishReindexTask(ReindexTask task) {
+        task.setFinishTime(System.currentTimeMillis());
+        taskTypes.remove(task.getTaskId());
+        if (Objects.nonNull(task.getCatchUpTaskId())) {
+            taskTypes.remove(task.getCatchUpTaskId());
+        }
+        taskScheduler.schedule(() -> reindexTasks.remove(task.getTaskId(), task), FINISHED_TASK_RETAIN_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 先记录再禁止旧索引写入，记录用于重启或超时后恢复写入
+     * @param task
+     * @throws IOException
+     */
+    private void blockSource(ReindexTask task) throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, Object> record = new HashMap<>();
+        record.put("alias", task.getAlias());
+        record.put("destIndex", task.getDestIndex());
+        record.put("taskId", task.getTaskId());
+        record.put("blockedAt", now);
+        client.index(new IndexRequest(reindexBlockIndex).id(task.getSourceIndex()).source(record)
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE), RequestOptions.DEFAULT);
+        task.setBlockedAt(now);
+        task.setSourceBlocked(true);
+        setWriteBlock(task.getSourceIndex(), true);
+    }
+
+    private void releaseSourceBlock(ReindexTask task) {
+        if (!task.isSourceBlocked()) {
+            return;
+        }
+        try {
+            setWriteBlock(task.getSourceIndex(), false);
+            task.setSourceBlocked(false);
+            LOGGER.info("旧索引已恢复写入！index: {}", task.getSourceIndex());
+        } catch (IOException | ElasticsearchException e) {
+            // 保留记录，重启后再恢复
+            LOGGER.error("旧索引恢复写入失败，需要手动删除index.blocks.write设置！index: {}", task.getSourceIndex(), e);
+            return;
+        }
+        deleteBlockRecord(task.getSourceIndex());
+    }
+
+    private void deleteBlockRecord(String sourceIndex) {
+        try {
+            client.delete(new DeleteRequest(reindexBlockIndex, sourceIndex), RequestOptions.DEFAULT);
+        } catch (IOException | ElasticsearchException e) {
+            LOGGER.error("禁止写入记录删除失败！index: {}", sourceIndex, e);
+        }
+    }
+
+    /**
+     * 恢复遗留的旧索引写入限制：记录超过blockTimeoutMillis的立即恢复，其余(可能属于其他实例进行中的任务)到期后再检查
+     */
+    private void releaseStaleBlocks() {
+        try {
+            if (!client.indices().exists(new GetIndexRequest(reindexBlockIndex), RequestOptions.DEFAULT)) {
+                return;
+            }
+            SearchResponse response = client.search(new SearchRequest(reindexBlockIndex)
+                    .source(new SearchSourceBuilder().size(REINDEX_BATCH_SIZE)), RequestOptions.DEFAULT);
+            long now = System.currentTimeMillis();
+            for (SearchHit hit : response.getHits().getHits()) {
+                Object blockedAt = hit.getSourceAsMap().get("blockedAt");
+                long delay = blockedAt instanceof Number
+                        ? Math.max(((Number) blockedAt).longValue() + reindexBlockTimeoutMillis - now, 0L) : 0L;
+                String sourceIndex = hit.getId();
+                taskScheduler.schedule(() -> releaseStaleBlock(sourceIndex, blockedAt), delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException | ElasticsearchException e) {
+            LOGGER.error("禁止写入记录读取失败，1分钟后重试！", e);
+            taskScheduler.schedule(this::releaseStaleBlocks, 1L, TimeUnit.MINUTES);
+        }
+    }
+
+    private void releaseStaleBlock(String sourceIndex, Object blockedAt) {
+        for (ReindexTask task : reindexTasks.values()) {
+            if (task.isSourceBlocked() && sourceIndex.equals(task.getSourceIndex())) {
+                // 本实例的任务自己恢复
+                return;
+            }
+        }
+        try {
+            GetResponse record = client.get(new GetRequest(reindexBlockIndex, sourceIndex), RequestOptions.DEFAULT);
+            if (!record.isExists() || !Objects.equals(record.getSourceAsMap().get("blockedAt"), blockedAt)) {
+                return;
+            }
+            if (client.indices().exists(new GetIndexRequest(sourceIndex), RequestOptions.DEFAULT)) {
+                setWriteBlock(sourceIndex, false);
+            }
+            deleteBlockRecord(sourceIndex);
+            LOGGER.error("已恢复遗留的旧索引写入限制！index: {}, 记录: {}", sourceIndex, record.getSourceAsMap());
+        } catch (IOException | ElasticsearchException e) {
+            LOGGER.error("旧索引恢复写入失败，1分钟后重试！index: {}", sourceIndex, e);
+            taskScheduler.schedule(() -> releaseStaleBlock(sourceIndex, blockedAt), 1L, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * 各主分片最大_seq_no中的最小值，之后的写入_seq_no都大于它
+     * @param index
+     * @return
+     * @throws IOException
+     */
+    private long seqNoCheckpoint(String index) throws IOException {
+        Request request = new Request("GET", "/" + index + "/_stats/docs");
+        request.addParameter("level", "shards");
+        Response response = client.getLowLevelClient().performRequest(request);
+        JSONObject indices = JSONObject.parseObject(EntityUtils.toString(response.getEntity())).getJSONObject("indices");
+        long checkpoint = Long.MAX_VALUE;
+        for (String name : indices.keySet()) {
+            JSONObject shards = indices.getJSONObject(name).getJSONObject("shards");
+            for (String shard : shards.keySet()) {
+                for (Object copy : shards.getJSONArray(shard)) {
+                    JSONObject shardCopy = (JSONObject) copy;
+                    if (shardCopy.getJSONObject("routing").getBooleanValue("primary")) {
+                        checkpoint = Math.min(checkpoint, shardCopy.getJSONObject("seq_no").getLongValue("max_seq_no"));
+                    }
+                }
+            }
+        }
+        if (checkpoint == Long.MAX_VALUE) {
+            throw new IOException("\"index=" + index + "\"的分片序号获取失败");
+        }
+        return checkpoint;
+    }
+
+    private void setWriteBlock(String index, boolean blocked) throws IOException {
+        Settings.Builder settings = Settings.builder();
+        if (blocked) {
+            settings.put(INDEX_BLOCKS_WRITE, true);
+        } else {
+            settings.putNull(INDEX_BLOCKS_WRITE);
+        }
+        AcknowledgedResponse response = client.indices().putSettings(new UpdateSettingsRequest(index).settings(settings),
+                RequestOptions.DEFAULT);
+        if (!response.isAcknowledged()) {
+            throw new IOException("\"index=" + index + "\"的写入限制设置未确认");
+        }
+    }
+
+    /**
+     * 生成下一个版本索引名(alias_vN)
+     * @param alias
+     * @param sourceIndex
+     * @return
+     */
+    private String nextVersionIndex(String alias, String sourceIndex) {
+        String base = alias;
+        int version = 1;
+        Matcher matcher = VERSION_INDEX_PATTERN.matcher(sourceIndex);
+        if (matcher.matches()) {
+            base = matcher.group(1);
+            version = Integer.parseInt(matcher.group(2)) + 1;
+        }
+        while (checkIndexExists(base + "_v" + version)) {
+            version++;
+        }
+        return base + "_v" + version;
+    }
+
+    /**
+     * 判断索引是否存在
+     * @param indexName
+     * @return
+     * @throws IOException
+     */
+    public boolean checkIndexExists(String indexName) {
+        GetIndexRequest request = new GetIndexRequest(indexName);
+        try {
+            return client.indices().exists(request, RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            LOGGER.error("操作异常！");
+        }
+        return false;
+    }
+
+    /**
+     * 开启索引
+     * @param indexName
+     * @throws IOException
+     */
+    public void openIndex(String indexName) throws IOException{
+        if (!checkIndexExists(indexName)) {
+            LOGGER.error("索引不存在！");
+            return;
+        }
+        OpenIndexRequest request = new OpenIndexRequest(indexName);
+        OpenIndexResponse response = client.indices().open(request, RequestOptions.DEFAULT);
+        if (response.isAcknowledged() || response.isShardsAcknowledged()) {
+            LOGGER.info("{} 索引开启成功！", indexName);
+        }
+    }
+
+    /**
+     * 关闭索引
+     * @param indexName
+     * @throws IOException
+     */
+    public void closeIndex(String indexName) throws IOException {
+        if (!checkIndexExists(indexName)) {
+            LOGGER.error("索引不存在！");
+            return;
+        }
+        CloseIndexRequest request = new CloseIndexRequest(indexName);
+        CloseIndexResponse response = client.indices().close(request, RequestOptions.DEFAULT);
+        if (response.isAcknowledged()) {
+            LOGGER.info("{} 索引已关闭！", indexName);
+        }
+    }
+
+
+
+    /**
+     * 设置文档映射(设置字段的数据类型)
+     * @param index
+     * @throws IOException
+     */
+    public void setMapping(String index, Map<String, Object> fields) {
+        if (!checkIndexExists(index)) {
+            LOGGER.error("索引不存在！");
+            return;
+        }
+        PutMappingRequest request = new PutMappingRequest(index);
+        try {
+//            request.source(source, XContentType.JSON);
+//            request.source(generateMappingProperties(fields));
+            request.source(fields);
+            AcknowledgedResponse response = client.indices().putMapping(request, RequestOptions.DEFAULT);
+            if (response.isAcknowledged()) {
+                LOGGER.info("已成功对\"index={}\"的文档设置类型映射！", index);
+            }
+        } catch (IOException e) {
+            LOGGER.error("\"index={}\"的文档设置类型映射失败！", index);
+        }
+    }
+
+    /**
+     * 创建mapping语句
+     * @param fields
+     * @return
+     * @throws IOException
+     */
+//    private XContentBuilder generateMappingProperties(Map<String, Map<String, String>> fields) throws IOException {
+//
+//        XContentBuilder builder = XContentFactory.jsonBuilder();
+//        builder.startObject();
+//        builder.startObject("properties");
+//
+//        if (!fields.isEmpty()){
+//            for (Map.Entry<String, Map<String, String>> field: fields.entrySet()) {
+//                if (null != field.getKey()){
+//                    builder.startObject(field.getKey());
+//                    if (!field.getValue().isEmpty()){
+//                        for (Map.Entry<String, String> filed : field.getValue().entrySet()){
+//                            String pro = filed.getKey();
+//                            String value = filed.getValue();
+//                            if( null != pro && null != value) {
+//                                builder.field(pro,value);
+//                            }
+//                        }
+//                    }
+//                    builder.endObject();
+//                }
+//            }
+//        }
+//        builder.endObject();
+//        builder.endObject();
+//        return builder;
+//    }
+
+    /**
+     * 增加文档
+     * @param indexName
+     * @param id
+     * @param jsonString
+     */
+    public void addDocByJson(String indexName, String id, String jsonString) throws IOException{
+        addDocByJson(indexName, id, jsonString, null);
+    }
+
+    /**
+     * 增加文档(指定路由)
+     * @param indexName
+     * @param id
+     * @param jsonString
+     * @param routing 路由键，为空则按id路由
+     */
+    public void addDocByJson(String indexName, String id, String jsonString, String routing) throws IOException{
+        if (!Utils.validate(jsonString)) {
+            LOGGER.error("非法的json字符串！");
+            return;
+        }
+        IndexRequest request=new IndexRequest(indexName);
+        request.id(id).opType("create").source(jsonString, XContentType.JSON);
+        if (StringUtils.isNotBlank(routing)) {
+            request.routing(routing);
+        }
+        long dedupKey = writeDeduplicator.begin(indexName, id, routing);
+        // request的opType默认是INDEX(传入相同id会覆盖原document，CREATE则会将旧的删除)
+        // request.opType(DocWriteRequest.OpType.CREATE)
+        if (writeSpool.hasPending() && spool(Collections.singletonList(request))) {
+            writeDeduplicator.abort(dedupKey);
+            return;
+        }
+        IndexResponse response = null;
+        try {
+            if (!checkIndexExists(indexName)) {
+                createIndex(indexName);
+            }
+            response = client.index(request, RequestOptions.DEFAULT);
+
+            String index = response.getIndex();
+            String documentId = response.getId();
+            if (response.getResult() == DocWriteResponse.Result.CREATED) {
+                LOGGER.info("新增文档成功！ index: {}, id: {}", index , documentId);
+            } else if (response.getResult() == DocWriteResponse.Result.UPDATED) {
+                LOGGER.info("修改文档成功！ index: {}, id: {}", index , documentId);
+            }
+            // 分片处理信息
+            ReplicationResponse.ShardInfo shardInfo = response.getShardInfo();
+            if (shardInfo.getTotal() != shardInfo.getSuccessful()) {
+                LOGGER.error("文档未写入全部分片副本！");
+            }
+            // 如果有分片副本失败，可以获得失败原因信息
+            if (shardInfo.getFailed() > 0) {
+                for (ReplicationResponse.ShardInfo.Failure failure : shardInfo.getFailures()) {
+                    String reason = failure.reason();
+                    LOGGER.error("副本失败原因：{}", reason);
+                }
+            }
+        } catch (IOException e) {
+            if (!spool(Collections.singletonList(request))) {
+                throw e;
+            }
+        } catch (ElasticsearchException e) {
+            if (WriteSpool.isUnavailable(e) && spool(Collections.singletonList(request))) {
+                return;
+            }
+            if (e.status() == RestStatus.CONFLICT) {
+                LOGGER.error("版本异常！");
+            }
+            LOGGER.error("文档新增失败！");
+        } finally {
+            writeDeduplicator.abort(dedupKey);
+        }
+    }
+
+    /**
+     * 查找文档
+     * @param index
+     * @param id
+     * @return
+     * @throws IOException
+     */
+    public Map<String, Object> getDocument(String index, String id) throws IOException{
+        return getDocument(index, id, null);
+    }
+
+    /**
+     * 查找文档(指定路由)
+     * @param index
+     * @param id
+     * @param routing 路由键，需与写入时一致
+     * @return
+     * @throws IOException
+     */
+    public Map<String, Object> getDocument(String index, String id, String routing) throws IOException{
+        Map<String, Object> resultMap = new HashMap<>();
+        GetRequest request = new GetRequest(index, id);
+        if (StringUtils.isNotBlank(routing)) {
+            request.routing(routing);
+        }
+        // 实时(否)
+        request.realtime(false);
+        // 检索之前执行刷新(是)
+        request.refresh(true);
+
+        GetResponse response = null;
+        try {
+            response = client.get(request, RequestOptions.DEFAULT);
+        } catch (ElasticsearchException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                LOGGER.error("文档未找到！" );
+            }
+            if (e.status() == RestStatus.CONFLICT) {
+                LOGGER.error("版本冲突！" );
+            }
             LOGGER.error("查找失败！");
         }
 
-        if(Objects.nonNull(response)) {
-            if (response.isExists()) { // 文档存在
-                resultMap = response.getSourceAsMap();
-            } else {
-                LOGGER.error("文档未找到！" );
+        if(Objects.nonNull(response)) {
+            if (response.isExists()) { // 文档存在
+                resultMap = response.getSourceAsMap();
+            } else {
+                LOGGER.error("文档未找到！" );
+            }
+        }
+        return resultMap;
+    }
+
+    /**
+     * 文档查询
+     * @param index 索引
+     * @param query query构造器
+     * @param sort sort构造器
+     * @return
+     * @throws IOException
+     */
+    public List<Map<String, Object>> search(String index, QueryBuilder query, FieldSortBuilder sort) throws IOException {
+        return search(index, query, sort, (String) null);
+    }
+
+    /**
+     * 文档查询(指定路由，只查询路由命中的分片)
+     * @param index 索引
+     * @param query query构造器
+     * @param sort sort构造器
+     * @param routing 路由键，多个以逗号分隔
+     * @return
+     * @throws IOException
+     */
+    public List<Map<String, Object>> search(String index, QueryBuilder query, FieldSortBuilder sort, String routing) throws IOException {
+        SearchSourceBuilder searchBuilder = new SearchSourceBuilder();
+        searchBuilder.timeout(TimeValue.timeValueMinutes(2L));
+        searchBuilder.query(queryOptimizer.optimize(query, QueryOptimizer.isScoreSort(sort)));
+        if (applySort(index, searchBuilder, sort)) {
+            // 排序与索引排序一致，不统计总数，分片取够条数即可提前终止
+            searchBuilder.trackTotalHits(false);
+        }
+
+        SearchRequest request = new SearchRequest(index);
+        request.source(searchBuilder);
+        if (StringUtils.isNotBlank(routing)) {
+            request.routing(routing);
+        }
+        if (StringUtils.isNotBlank(routing)) {
+            request.routing(routing);
+        }
+        SearchResponse response = doSearch(request);
+        int failedShards = response.getFailedShards();
+        if (failedShards > 0) {
+            LOGGER.error("部分分片副本处理失败！");
+            for (ShardSearchFailure failure : response.getShardFailures()) {
+                String reason = failure.reason();
+                LOGGER.error("分片处理失败原因：{}", reason);
             }
         }
-        return resultMap;
+        List<Map<String, Object>> list = parseSearchResponse(response);
+        return list;
+    }
+
+    /**
+     * 查询排序靠前的N条文档(排序与索引排序一致时不统计总数，分片可提前终止)
+     * @param index 索引
+     * @param query query构造器
+     * @param sort sort构造器，为空时优先使用索引排序
+     * @param size 返回条数
+     * @return
+     * @throws IOException
+     */
+    public List<Map<String, Object>> searchTop(String index, QueryBuilder query, FieldSortBuilder sort, int size) throws IOException {
+        return searchTop(index, query, sort, size, null);
+    }
+
+    /**
+     * 按路由查询排序靠前的N条文档(排序与索引排序一致时不统计总数，分片可提前终止)
+     * @param index 索引
+     * @param query query构造器
+     * @param sort sort构造器，为空时优先使用索引排序
+     * @param size 返回条数
+     * @param routing 路由键，多个以逗号分隔
+     * @return
+     * @throws IOException
+     */
+    public List<Map<String, Object>> searchTop(String index, QueryBuilder query, FieldSortBuilder sort, int size, String routing) throws IOException {
+        SearchSourceBuilder searchBuilder = new SearchSourceBuilder();
+        searchBuilder.timeout(TimeValue.timeValueMinutes(2L));
+        searchBuilder.query(queryOptimizer.optimize(query, QueryOptimizer.isScoreSort(sort)));
+        searchBuilder.size(size);
+        if (applySort(index, searchBuilder, sort)) {
+            searchBuilder.trackTotalHits(false);
+        }
+
+        SearchRequest request = new SearchRequest(index);
+        request.source(searchBuilder);
+        SearchResponse response = doSearch(request);
+        int failedShards = response.getFailedShards();
+        if (failedShards > 0) {
+            LOGGER.error("部分分片副本处理失败！");
+            for (ShardSearchFailure failure : response.getShardFailures()) {
+                String reason = failure.reason();
+                LOGGER.error("分片处理失败原因：{}", reason);
+            }
+        }
+        return parseSearchResponse(response);
     }
 
     /**
@@ -364,21 +1401,75 @@ public class ElasticClient implements Closeable {
      * @param index 索引
      * @param query query构造器
      * @param sort sort构造器
+     * @param pageNum 页码
+     * @param pageSize 每页条数
      * @return
      * @throws IOException
      */
-    public List<Map<String, Object>> search(String index, QueryBuilder query, FieldSortBuilder sort) throws IOException {
+    public EsPage<Map<String, Object>> search(String index, QueryBuilder query, FieldSortBuilder sort, Integer pageNum, Integer pageSize) throws IOException {
+        return search(index, query, sort, pageNum, pageSize, null);
+    }
+
+    /**
+     * 文档查询(指定路由，只查询路由命中的分片)
+     * @param index 索引
+     * @param query query构造器
+     * @param sort sort构造器
+     * @param pageNum 页码
+     * @param pageSize 每页条数
+     * @param routing 路由键，多个以逗号分隔
+     * @return
+     * @throws IOException
+     */
+    public EsPage<Map<String, Object>> search(String index, QueryBuilder query, FieldSortBuilder sort, Integer pageNum, Integer pageSize, String routing) throws IOException {
+        return search(index, query, sort, pageNum, pageSize, routing, null);
+    }
+
+    /**
+     * 文档查询(可开启耗时分析)
+     * @param index 索引
+     * @param query query构造器
+     * @param sort sort构造器
+     * @param pageNum 页码
+     * @param pageSize 每页条数
+     * @param routing 路由键，多个以逗号分隔
+     * @param profile 不为空时开启es的profile，并记录客户端各阶段耗时
+     * @return
+     * @throws IOException
+     */
+    public EsPage<Map<String, Object>> search(String index, QueryBuilder query, FieldSortBuilder sort, Integer pageNum, Integer pageSize, String routing, SearchProfile profile) throws IOException {
         SearchSourceBuilder searchBuilder = new SearchSourceBuilder();
         searchBuilder.timeout(TimeValue.timeValueMinutes(2L));
-        searchBuilder.query(query);
-        if (Objects.isNull(sort)) {
-            //默认id倒序
-            searchBuilder.sort(SortBuilders.fieldSort("_id").order(SortOrder.DESC));
-        }
+        searchBuilder.query(queryOptimizer.optimize(query, QueryOptimizer.isScoreSort(sort)));
+        // 分页需要总数，保留总数统计
+        applySort(index, searchBuilder, sort);
 
+        if (Objects.isNull(pageNum)) {
+            pageNum = 0;
+        }
+        if (Objects.isNull(pageSize)) {
+            pageSize = 10;
+        }
+        searchBuilder.from(pageNum).size(pageSize);
         SearchRequest request = new SearchRequest(index);
         request.source(searchBuilder);
-        SearchResponse response = client.search(request, RequestOptions.DEFAULT);
+        if (StringUtils.isNotBlank(routing)) {
+            request.routing(routing);
+        }
+        long start = System.nanoTime();
+        if (Objects.nonNull(profile)) {
+            searchBuilder.profile(true);
+            // 客户端发送请求时会再序列化一次，这里单独序列化一次统计耗时
+            Strings.toString(searchBuilder);
+            profile.setSerializeMicros((System.nanoTime() - start) / 1000L);
+            start = System.nanoTime();
+        }
+        SearchResponse response = doSearch(request);
+        if (Objects.nonNull(profile)) {
+            profile.setRequestMicros((System.nanoTime() - start) / 1000L);
+            profile.setTook(response.getTook().millis());
+            profile.setNetworkMicros(Math.max(profile.getRequestMicros() - response.getTook().micros(), 0L));
+        }
         int failedShards = response.getFailedShards();
         if (failedShards > 0) {
             LOGGER.error("部分分片副本处理失败！");
@@ -387,57 +1478,452 @@ public class ElasticClient implements Closeable {
                 LOGGER.error("分片处理失败原因：{}", reason);
             }
         }
+
+        start = System.nanoTime();
         List<Map<String, Object>> list = parseSearchResponse(response);
+        if (Objects.nonNull(profile)) {
+            profile.setParseMicros((System.nanoTime() - start) / 1000L);
+            profile.setShards(parseProfileResults(response));
+        }
+        long totalRecord = response.getHits().getTotalHits().value;
+
+        EsPage<Map<String, Object>> page = new EsPage<>();
+        page.setPageNum(pageNum);
+        page.setPageSize(pageSize);
+        page.setData(list);
+        page.setTotal(totalRecord);
+        return page;
+    }
+
+    /**
+     * 文档查询并关联mysql数据，每页每张关联表只查询一次数据库
+     * @param index 索引
+     * @param query query构造器
+     * @param sort sort构造器
+     * @param pageNum 页码
+     * @param pageSize 每页条数
+     * @param enrichRules 关联规则
+     * @return
+     * @throws IOException
+     */
+    public EsPage<Map<String, Object>> searchAndEnrich(String index, QueryBuilder query, FieldSortBuilder sort, Integer pageNum, Integer pageSize, List<EnrichRule> enrichRules) throws IOException {
+        EsPage<Map<String, Object>> page = search(index, query, sort, pageNum, pageSize, null);
+        hitEnricher.enrich(page.getData(), enrichRules);
+        return page;
+    }
+
+    /**
+     * 通过存储的查询模板查询
+     * @param index 索引
+     * @param templateId 模板id
+     * @param params 模板参数
+     * @param routing 路由键，为空则查询全部分片
+     * @return
+     * @throws IOException
+     */
+    public List<Map<String, Object>> searchTemplate(String index, String templateId, Map<String, Object> params, String routing) throws IOException {
+        return searchTemplate(index, ScriptType.STORED, templateId, params, routing);
+    }
+
+    /**
+     * 按固定的查询结构查询，查询结构只在第一次使用时序列化，之后直接复用序列化结果作为内联模板发送
+     * @param index 索引
+     * @param shapeName 查询结构名，相同的名称必须对应相同的查询结构
+     * @param shape 查询结构，变化的值使用"{{xxx}}"占位
+     * @param params 模板参数
+     * @param routing 路由键，为空则查询全部分片
+     * @return
+     * @throws IOException
+     */
+    public List<Map<String, Object>> searchShape(String index, String shapeName, Supplier<SearchSourceBuilder> shape, Map<String, Object> params, String routing) throws IOException {
+        String source = queryShapes.computeIfAbsent(shapeName, name -> Strings.toString(shape.get()));
+        return searchTemplate(index, ScriptType.INLINE, source, params, routing);
+    }
+
+    /**
+     * 按前缀自动补全(completion suggester)
+     * @param index 索引
+     * @param field completion字段
+     * @param prefix 前缀
+     * @param size 最多返回条数
+     * @return 补全文本，按权重排序并去重
+     * @throws IOException
+     */
+    public List<String> suggest(String index, String field, String prefix, int size) throws IOException {
+        CompletionSuggestionBuilder suggestion = SuggestBuilders.completionSuggestion(field)
+                .prefix(prefix)
+                .size(size)
+                .skipDuplicates(true);
+        SearchSourceBuilder searchBuilder = new SearchSourceBuilder()
+                .suggest(new SuggestBuilder().addSuggestion(SUGGEST_NAME, suggestion))
+                .size(0)
+                .trackTotalHits(false)
+                .fetchSource(false);
+        SearchResponse response = doSearch(new SearchRequest(index).source(searchBuilder));
+        List<String> list = new ArrayList<>();
+        if (Objects.isNull(response.getSuggest())) {
+            return list;
+        }
+        CompletionSuggestion completion = response.getSuggest().getSuggestion(SUGGEST_NAME);
+        for (CompletionSuggestion.Entry entry : completion.getEntries()) {
+            for (CompletionSuggestion.Entry.Option option : entry.getOptions()) {
+                list.add(option.getText().string());
+            }
+        }
         return list;
     }
 
+    private List<Map<String, Object>> searchTemplate(String index, ScriptType scriptType, String script, Map<String, Object> params, String routing) throws IOException {
+        SearchRequest searchRequest = new SearchRequest(index);
+        if (StringUtils.isNotBlank(routing)) {
+            searchRequest.routing(routing);
+        }
+        SearchTemplateRequest request = new SearchTemplateRequest(searchRequest);
+        request.setScriptType(scriptType);
+        request.setScript(script);
+        request.setScriptParams(Objects.isNull(params) ? Collections.emptyMap() : params);
+        long start = System.currentTimeMillis();
+        SearchResponse response = null;
+        Exception error = null;
+        try {
+            response = clusterRouter.read(readClient -> readClient.searchTemplate(request, RequestOptions.DEFAULT)).getResponse();
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            slowLog.searchTemplate(request, response, error, System.currentTimeMillis() - start);
+        }
+        if (response.getFailedShards() > 0) {
+            LOGGER.error("部分分片副本处理失败！");
+            for (ShardSearchFailure failure : response.getShardFailures()) {
+                LOGGER.error("分片处理失败原因：{}", failure.reason());
+            }
+        }
+        return parseSearchResponse(response);
+    }
+
     /**
-     * 文档查询
+     * 按页拉取查询结果(search_after分页)，每次调用hasNext时才请求下一页，停止迭代即停止向集群请求
      * @param index 索引
      * @param query query构造器
+     * @param sort sort构造器，会追加_id作为相同排序值的区分
+     * @param pageSize 每页条数
+     * @param routing 路由键，为空则查询全部分片
+     * @return 每个元素为一页文档，请求失败时抛出UncheckedIOException
+     */
+    public Iterator<List<Map<String, Object>>> searchPages(String index, QueryBuilder query, FieldSortBuilder sort, int pageSize, String routing) {
+        SearchSourceBuilder searchBuilder = new SearchSourceBuilder();
+        searchBuilder.timeout(TimeValue.timeValueMinutes(2L));
+        searchBuilder.query(queryOptimizer.optimize(query, QueryOptimizer.isScoreSort(sort)));
+        searchBuilder.size(pageSize);
+        // 逐页拉取不需要总数
+        searchBuilder.trackTotalHits(false);
+        applySort(index, searchBuilder, sort);
+        boolean sortedById = false;
+        for (SortBuilder<?> sortBuilder : searchBuilder.sorts()) {
+            if (sortBuilder instanceof FieldSortBuilder && "_id".equals(((FieldSortBuilder) sortBuilder).getFieldName())) {
+                sortedById = true;
+            }
+        }
+        if (!sortedById) {
+            searchBuilder.sort(SortBuilders.fieldSort("_id").order(SortOrder.ASC));
+        }
+
+        return new Iterator<List<Map<String, Object>>>() {
+            private List<Map<String, Object>> nextPage;
+            private Object[] searchAfter;
+            private boolean finished;
+
+            @Override
+            public boolean hasNext() {
+                if (Objects.isNull(nextPage) && !finished) {
+                    fetch();
+                }
+                return Objects.nonNull(nextPage);
+            }
+
+            @Override
+            public List<Map<String, Object>> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                List<Map<String, Object>> page = nextPage;
+                nextPage = null;
+                return page;
+            }
+
+            private void fetch() {
+                if (Objects.nonNull(searchAfter)) {
+                    searchBuilder.searchAfter(searchAfter);
+                }
+                SearchRequest request = new SearchRequest(index);
+                request.source(searchBuilder);
+                if (StringUtils.isNotBlank(routing)) {
+                    request.routing(routing);
+                }
+                SearchResponse response;
+                try {
+                    response = doSearch(request);
+                } catch (IOException e) {
+                    finished = true;
+                    throw new UncheckedIOException(e);
+                }
+                if (response.getFailedShards() > 0) {
+                    LOGGER.error("部分分片副本处理失败！");
+                }
+                SearchHit[] hits = response.getHits().getHits();
+                if (hits.length == 0) {
+                    finished = true;
+                    return;
+                }
+                searchAfter = hits[hits.length - 1].getSortValues();
+                // 不满一页说明已是最后一页，不再多请求一次
+                finished = hits.length < pageSize;
+                nextPage = parseSearchResponse(response);
+            }
+        };
+    }
+
+    /**
+     * 设置查询排序：未指定排序时，有索引排序则按索引排序，否则按id倒序
+     * @param index
+     * @param searchBuilder
+     * @param sort
+     * @return 查询排序是否与索引排序一致(可提前终止)
+     */
+    private boolean applySort(String index, SearchSourceBuilder searchBuilder, FieldSortBuilder sort) {
+        List<String> indexSort = getIndexSort(index);
+        if (Objects.isNull(sort)) {
+            if (indexSort.isEmpty()) {
+                //默认id倒序
+                searchBuilder.sort(SortBuilders.fieldSort("_id").order(SortOrder.DESC));
+                return false;
+            }
+            for (String fieldSort : indexSort) {
+                int split = fieldSort.lastIndexOf(':');
+                searchBuilder.sort(SortBuilders.fieldSort(fieldSort.substring(0, split))
+                        .order(SortOrder.fromString(fieldSort.substring(split + 1))));
+            }
+            return true;
+        }
+        searchBuilder.sort(sort);
+        return !indexSort.isEmpty() && indexSort.get(0).equals(sort.getFieldName() + ":" + sort.order());
+    }
+
+    /**
+     * 获取索引排序配置(别名下各索引排序不一致时视为无索引排序)
+     * @param index
+     * @return
+     */
+    private List<String> getIndexSort(String index) {
+        List<String> indexSort = indexSorts.get(index);
+        if (Objects.nonNull(indexSort)) {
+            return indexSort;
+        }
+        // 不在computeIfAbsent中加载，避免阻塞的es请求占住ConcurrentHashMap的桶锁；并发首次加载时各自请求一次
+        indexSort = loadIndexSort(index);
+        if (Objects.isNull(indexSort)) {
+            return Collections.emptyList();
+        }
+        indexSorts.put(index, indexSort);
+        return indexSort;
+    }
+
+    private List<String> loadIndexSort(String index) {
+        GetSettingsRequest request = new GetSettingsRequest().indices(index).names(INDEX_SORT_FIELD, INDEX_SORT_ORDER);
+        try {
+            GetSettingsResponse response = client.indices().getSettings(request, RequestOptions.DEFAULT);
+            List<String> result = null;
+            Iterator<Settings> iterator = response.getIndexToSettings().valuesIt();
+            while (iterator.hasNext()) {
+                Settings settings = iterator.next();
+                List<String> fields = settings.getAsList(INDEX_SORT_FIELD);
+                List<String> orders = settings.getAsList(INDEX_SORT_ORDER);
+                List<String> sorts = new ArrayList<>();
+                for (int i = 0; i < fields.size(); i++) {
+                    sorts.add(fields.get(i) + ":" + (i < orders.size() ? orders.get(i) : SortOrder.ASC.toString()));
+                }
+                if (Objects.isNull(result)) {
+                    result = sorts;
+                } else if (!result.equals(sorts)) {
+                    return Collections.emptyList();
+                }
+            }
+            return Objects.isNull(result) ? Collections.emptyList() : result;
+        } catch (IOException | ElasticsearchException e) {
+            // 获取失败不缓存，下次查询重试
+            LOGGER.error("\"index={}\"索引排序配置获取失败！", index);
+            return null;
+        }
+    }
+
+    /**
+     * 按时间范围查询滚动索引，只查询时间范围有交集的索引
+     * @param alias 滚动索引的别名
+     * @param query query构造器
      * @param sort sort构造器
+     * @param startTime 开始时间(毫秒时间戳，包含)
+     * @param endTime 结束时间(毫秒时间戳，包含)
      * @param pageNum 页码
      * @param pageSize 每页条数
      * @return
      * @throws IOException
      */
-    public EsPage<Map<String, Object>> search(String index, QueryBuilder query, FieldSortBuilder sort, Integer pageNum, Integer pageSize) throws IOException {
+    public EsPage<Map<String, Object>> searchByTimeRange(String alias, QueryBuilder query, FieldSortBuilder sort, long startTime, long endTime, Integer pageNum, Integer pageSize) throws IOException {
+        if (Objects.isNull(pageNum)) {
+            pageNum = 0;
+        }
+        if (Objects.isNull(pageSize)) {
+            pageSize = 10;
+        }
+        EsPage<Map<String, Object>> page = new EsPage<>();
+        page.setPageNum(pageNum);
+        page.setPageSize(pageSize);
+
+        String[] indices = resolveIndicesByTimeRange(alias, startTime, endTime);
+        if (indices.length == 0) {
+            page.setData(new ArrayList<>());
+            page.setTotal(0L);
+            return page;
+        }
+
+        BoolQueryBuilder boolQuery = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.rangeQuery(TIMESTAMP).gte(startTime).lte(endTime).format("epoch_millis"));
+        if (Objects.nonNull(query)) {
+            boolQuery.must(query);
+        }
+        SearchSourceBuilder searchBuilder = new SearchSourceBuilder();
+        searchBuilder.timeout(TimeValue.timeValueMinutes(2L));
+        searchBuilder.query(queryOptimizer.optimize(boolQuery, QueryOptimizer.isScoreSort(sort)));
+        if (Objects.isNull(sort)) {
+            //默认时间倒序
+            searchBuilder.sort(SortBuilders.fieldSort(TIMESTAMP).order(SortOrder.DESC));
+        } else {
+            searchBuilder.sort(sort);
+        }
+        searchBuilder.from(pageNum).size(pageSize);
+
+        SearchRequest request = new SearchRequest(indices);
+        request.source(searchBuilder);
+        SearchResponse response = doSearch(request);
+        int failedShards = response.getFailedShards();
+        if (failedShards > 0) {
+            LOGGER.error("部分分片副本处理失败！");
+            for (ShardSearchFailure failure : response.getShardFailures()) {
+                String reason = failure.reason();
+                LOGGER.error("分片处理失败原因：{}", reason);
+            }
+        }
+        page.setData(parseSearchResponse(response));
+        page.setTotal(response.getHits().getTotalHits().value);
+        return page;
+    }
+
+    /**
+     * 找出别名下与时间范围有交集的索引
+     * <p>
+     * 只有明确标记为非写索引(is_write_index=false)的已滚动索引才按缓存的时间范围筛选，
+     * 写索引、未标记写索引的普通别名下的索引和时间范围未知的索引始终参与查询
+     * @param alias
+     * @param startTime
+     * @param endTime
+     * @return
+     * @throws IOException
+     */
+    private String[] resolveIndicesByTimeRange(String alias, long startTime, long endTime) throws IOException {
+        GetAliasesResponse aliasesResponse = client.indices().getAlias(new GetAliasesRequest(alias), RequestOptions.DEFAULT);
+        Map<String, Set<AliasMetaData>> aliases = aliasesResponse.getAliases();
+        if (aliases.isEmpty()) {
+            // 不是别名，按普通索引查询
+            return new String[]{alias};
+        }
+
+        List<String> result = new ArrayList<>();
+        List<String> rolled = new ArrayList<>();
+        List<String> uncached = new ArrayList<>();
+        for (Map.Entry<String, Set<AliasMetaData>> entry : aliases.entrySet()) {
+            boolean rolledIndex = false;
+            for (AliasMetaData metaData : entry.getValue()) {
+                if (alias.equals(metaData.alias()) && Boolean.FALSE.equals(metaData.writeIndex())) {
+                    rolledIndex = true;
+                }
+            }
+            if (!rolledIndex) {
+                result.add(entry.getKey());
+                continue;
+            }
+            rolled.add(entry.getKey());
+            if (!indexTimeRanges.containsKey(entry.getKey())) {
+                uncached.add(entry.getKey());
+            }
+        }
+        if (!uncached.isEmpty()) {
+            loadIndexTimeRanges(uncached);
+        }
+
+        for (String index : rolled) {
+            long[] range = indexTimeRanges.get(index);
+            // 范围未知(空索引或统计失败)时也查询
+            if (Objects.isNull(range) || (range[0] <= endTime && range[1] >= startTime)) {
+                result.add(index);
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * 索引创建、删除、滚动或别名切换后清除排序配置缓存(key可能是别名或通配符，无法按索引名精确失效，直接全部清除)
+     */
+    private void forgetIndexSorts() {
+        indexSorts.clear();
+    }
+
+    /**
+     * 删除索引后清除其时间范围缓存
+     * @param indexName 索引名，可以是逗号分隔的多个索引或通配符
+     */
+    private void forgetIndexTimeRanges(String indexName) {
+        String[] patterns = Strings.splitStringByCommaToArray(indexName);
+        if (Arrays.asList(patterns).contains("_all")) {
+            indexTimeRanges.clear();
+            return;
+        }
+        indexTimeRanges.keySet().removeIf(index -> Regex.simpleMatch(patterns, index));
+    }
+
+    /**
+     * 统计已滚动索引的时间戳范围并缓存(已滚动的索引不再写入，范围不会变化)
+     * <p>
+     * 先刷新再在主集群上统计，避免漏掉未刷新或未复制到只读集群的文档。
+     * 没有文档或有分片失败的索引不缓存，下次查询时重新统计
+     * @param indices
+     * @throws IOException
+     */
+    private void loadIndexTimeRanges(List<String> indices) throws IOException {
+        client.indices().refresh(new RefreshRequest(indices.toArray(new String[0])), RequestOptions.DEFAULT);
         SearchSourceBuilder searchBuilder = new SearchSourceBuilder();
-        searchBuilder.timeout(TimeValue.timeValueMinutes(2L));
-        searchBuilder.query(query);
-        if (Objects.isNull(sort)) {
-            //默认id倒序
-            searchBuilder.sort(SortBuilders.fieldSort("_id").order(SortOrder.DESC));
+        searchBuilder.size(0);
+        searchBuilder.aggregation(AggregationBuilders.terms(INDEX_KEY).field("_index").size(indices.size())
+                .subAggregation(AggregationBuilders.min("min").field(TIMESTAMP))
+                .subAggregation(AggregationBuilders.max("max").field(TIMESTAMP)));
+        SearchRequest request = new SearchRequest(indices.toArray(new String[0]));
+        request.source(searchBuilder);
+        SearchResponse response = ClusterRouter.onCluster(ClusterRouter.PRIMARY, () -> doSearch(request));
+        if (response.getFailedShards() > 0 || Objects.isNull(response.getAggregations())) {
+            LOGGER.error("索引时间范围统计不完整，不缓存！indices: {}", indices);
+            return;
         }
 
-        if (Objects.isNull(pageNum)) {
-            pageNum = 0;
-        }
-        if (Objects.isNull(pageSize)) {
-            pageSize = 10;
-        }
-        searchBuilder.from(pageNum).size(pageSize);
-        SearchRequest request = new SearchRequest(index);
-        request.source(searchBuilder);
-        SearchResponse response = client.search(request, RequestOptions.DEFAULT);
-        int failedShards = response.getFailedShards();
-        if (failedShards > 0) {
-            LOGGER.error("部分分片副本处理失败！");
-            for (ShardSearchFailure failure : response.getShardFailures()) {
-                String reason = failure.reason();
-                LOGGER.error("分片处理失败原因：{}", reason);
+        Terms terms = response.getAggregations().get(INDEX_KEY);
+        for (Terms.Bucket bucket : terms.getBuckets()) {
+            Min min = bucket.getAggregations().get("min");
+            Max max = bucket.getAggregations().get("max");
+            // 没有时间戳字段的文档不计入min/max，结果为无穷大
+            if (Double.isInfinite(min.getValue()) || Double.isInfinite(max.getValue())) {
+                continue;
             }
+            indexTimeRanges.put(bucket.getKeyAsString(), new long[]{(long) min.getValue(), (long) max.getValue()});
         }
-
-        List<Map<String, Object>> list = parseSearchResponse(response);
-        long totalRecord = response.getHits().getTotalHits().value;
-
-        EsPage<Map<String, Object>> page = new EsPage<>();
-        page.setPageNum(pageNum);
-        page.setPageSize(pageSize);
-        page.setData(list);
-        page.setTotal(totalRecord);
-        return page;
     }
 
     /**
@@ -447,12 +1933,40 @@ public class ElasticClient implements Closeable {
      * @throws IOException
      */
     public void deleteDocument(String index, String id) throws IOException {
+        deleteDocument(index, id, null);
+    }
+
+    /**
+     * 删除文档(指定路由)
+     * @param index
+     * @param id
+     * @param routing 路由键，需与写入时一致
+     * @throws IOException
+     */
+    public void deleteDocument(String index, String id, String routing) throws IOException {
         DeleteRequest request = new DeleteRequest(index, id);
+        if (StringUtils.isNotBlank(routing)) {
+            request.routing(routing);
+        }
+        long dedupKey = writeDeduplicator.begin(index, id, routing);
+        if (writeSpool.hasPending() && spool(Collections.singletonList(request))) {
+            writeDeduplicator.abort(dedupKey);
+            return;
+        }
         DeleteResponse response = null;
         try {
             response = client.delete(request, RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            if (!spool(Collections.singletonList(request))) {
+                throw e;
+            }
         } catch (ElasticsearchException e) {
+            if (WriteSpool.isUnavailable(e) && spool(Collections.singletonList(request))) {
+                return;
+            }
             LOGGER.error("删除失败!");
+        } finally {
+            writeDeduplicator.abort(dedupKey);
         }
         if (Objects.nonNull(response)) {
             if (response.getResult() == DocWriteResponse.Result.NOT_FOUND) {
@@ -479,8 +1993,23 @@ public class ElasticClient implements Closeable {
      * @param script
      */
     public void updateDocByScript(String index, String id, String script) throws IOException{
+        updateDocByScript(index, id, script, null);
+    }
+
+    /**
+     * 脚本语句更新文档(指定路由)
+     * @param index
+     * @param id
+     * @param script
+     * @param routing 路由键，需与写入时一致
+     */
+    public void updateDocByScript(String index, String id, String script, String routing) throws IOException{
         Script inline = new Script(script);
         UpdateRequest request = new UpdateRequest(index, id).script(inline);
+        if (StringUtils.isNotBlank(routing)) {
+            request.routing(routing);
+        }
+        long dedupKey = writeDeduplicator.begin(index, id, routing);
         try {
             UpdateResponse response  = client.update(request, RequestOptions.DEFAULT);
             if (response.getResult() == DocWriteResponse.Result.UPDATED) {
@@ -508,7 +2037,202 @@ public class ElasticClient implements Closeable {
                 LOGGER.error("版本冲突异常！" );
             }
             LOGGER.error("更新失败！");
+        } finally {
+            writeDeduplicator.abort(dedupKey);
+        }
+    }
+
+    /**
+     * 存储脚本(同一id内容未变化时不重复提交)，之后通过id和params调用，避免每个不同的值都重新编译
+     * @param scriptId 脚本id
+     * @param source painless脚本，变化的值通过params.xxx引用
+     * @return 是否存储成功
+     * @throws IOException
+     */
+    public boolean putStoredScript(String scriptId, String source) throws IOException {
+        return putScript(scriptId, Script.DEFAULT_SCRIPT_LANG, source);
+    }
+
+    /**
+     * 存储查询模板(同一id内容未变化时不重复提交)，之后通过searchTemplate按id和params查询，es会缓存编译后的模板
+     * @param templateId 模板id
+     * @param source mustache模板，变化的值通过{{xxx}}引用
+     * @return 是否存储成功
+     * @throws IOException
+     */
+    public boolean putSearchTemplate(String templateId, String source) throws IOException {
+        return putScript(templateId, MUSTACHE_LANG, source);
+    }
+
+    private boolean putScript(String scriptId, String lang, String source) throws IOException {
+        if (source.equals(storedScripts.get(scriptId))) {
+            return true;
+        }
+        JSONObject script = new JSONObject(true);
+        script.put("lang", lang);
+        script.put("source", source);
+        JSONObject content = new JSONObject();
+        content.put("script", script);
+        PutStoredScriptRequest request = new PutStoredScriptRequest()
+                .id(scriptId)
+                .content(new BytesArray(content.toJSONString()), XContentType.JSON);
+        AcknowledgedResponse response = client.putScript(request, RequestOptions.DEFAULT);
+        if (response.isAcknowledged()) {
+            storedScripts.put(scriptId, source);
+            LOGGER.info("脚本存储成功！id: {}", scriptId);
+        }
+        return response.isAcknowledged();
+    }
+
+    /**
+     * 删除存储的脚本
+     * @param scriptId
+     * @throws IOException
+     */
+    public void deleteStoredScript(String scriptId) throws IOException {
+        storedScripts.remove(scriptId);
+        try {
+            AcknowledgedResponse response = client.deleteScript(new DeleteStoredScriptRequest(scriptId), RequestOptions.DEFAULT);
+            if (response.isAcknowledged()) {
+                LOGGER.info("脚本删除成功！id: {}", scriptId);
+            }
+        } catch (ElasticsearchException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                LOGGER.error("脚本不存在！id: {}", scriptId);
+            }
+            LOGGER.error("脚本删除失败！");
+        }
+    }
+
+    /**
+     * 通过存储的脚本更新文档
+     * @param index
+     * @param id
+     * @param scriptId 存储的脚本id
+     * @param params 脚本参数
+     * @param routing 路由键，为空则按id路由
+     * @throws IOException
+     */
+    public void updateDocByStoredScript(String index, String id, String scriptId, Map<String, Object> params, String routing) throws IOException {
+        Script stored = new Script(ScriptType.STORED, null, scriptId, Objects.isNull(params) ? Collections.emptyMap() : params);
+        UpdateRequest request = new UpdateRequest(index, id).script(stored);
+        if (StringUtils.isNotBlank(routing)) {
+            request.routing(routing);
+        }
+        long dedupKey = writeDeduplicator.begin(index, id, routing);
+        try {
+            UpdateResponse response = client.update(request, RequestOptions.DEFAULT);
+            if (response.getResult() == DocWriteResponse.Result.UPDATED) {
+                LOGGER.info("文档更新成功！");
+            } else if (response.getResult() == DocWriteResponse.Result.NOOP) {
+                LOGGER.info("\"index={},id={}\"的文档内容未变化，es未执行更新", index, id);
+            }
+        } catch (ElasticsearchException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                LOGGER.error("不存在这个文档或脚本！" );
+            } else if (e.status() == RestStatus.CONFLICT) {
+                LOGGER.error("版本冲突异常！" );
+            }
+            LOGGER.error("更新失败！");
+        } finally {
+            writeDeduplicator.abort(dedupKey);
+        }
+    }
+
+    /**
+     * 通过存储的脚本批量更新文档(一个请求内对多个id执行同一脚本)
+     * @param index
+     * @param ids 文档id
+     * @param scriptId 存储的脚本id
+     * @param params 脚本参数
+     * @return 各结果的数量：noop、updated、failed
+     * @throws IOException
+     */
+    public Map<String, Integer> bulkUpdateByScript(String index, List<String> ids, String scriptId, Map<String, Object> params) throws IOException {
+        return bulkUpdateByScript(index, ids, scriptId, params, null);
+    }
+
+    /**
+     * 通过存储的脚本批量更新文档(指定路由)
+     * @param index
+     * @param ids 文档id
+     * @param scriptId 存储的脚本id
+     * @param params 脚本参数
+     * @param routing 路由键，需与写入时一致
+     * @return 各结果的数量：noop、updated、failed
+     * @throws IOException
+     */
+    public Map<String, Integer> bulkUpdateByScript(String index, List<String> ids, String scriptId, Map<String, Object> params,
+                                                   String routing) throws IOException {
+        // 所有请求共享同一个脚本对象
+        Script stored = new Script(ScriptType.STORED, null, scriptId, Objects.isNull(params) ? Collections.emptyMap() : params);
+        Map<String, Script> scripts = new LinkedHashMap<>();
+        for (String id : ids) {
+            if (StringUtils.isNotBlank(id)) {
+                scripts.put(id, stored);
+            }
+        }
+        return bulkUpdateByScript(index, scripts, scriptId, routing);
+    }
+
+    /**
+     * 通过存储的脚本批量更新文档，每个文档使用各自的脚本参数
+     * @param index
+     * @param paramsById key为文档id，value为该文档的脚本参数
+     * @param scriptId 存储的脚本id
+     * @param routing 路由键，需与写入时一致
+     * @return 各结果的数量：noop、updated、failed
+     * @throws IOException
+     */
+    public Map<String, Integer> bulkUpdateByScriptParams(String index, Map<String, Map<String, Object>> paramsById, String scriptId,
+                                                         String routing) throws IOException {
+        Map<String, Script> scripts = new LinkedHashMap<>();
+        paramsById.forEach((id, params) -> {
+            if (StringUtils.isNotBlank(id)) {
+                scripts.put(id, new Script(ScriptType.STORED, null, scriptId, Objects.isNull(params) ? Collections.emptyMap() : params));
+            }
+        });
+        return bulkUpdateByScript(index, scripts, scriptId, routing);
+    }
+
+    private Map<String, Integer> bulkUpdateByScript(String index, Map<String, Script> scripts, String scriptId, String routing) throws IOException {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (String key : new String[]{"noop", "updated", "failed"}) {
+            counts.put(key, 0);
+        }
+        BulkRequest bulkRequest = new BulkRequest();
+        // 与bulkRequest中的请求一一对应
+        long[] dedupKeys = new long[scripts.size()];
+        scripts.forEach((id, script) -> {
+            dedupKeys[bulkRequest.numberOfActions()] = writeDeduplicator.begin(index, id, routing);
+            bulkRequest.add(new UpdateRequest(index, id).script(script).routing(routing));
+        });
+        if (bulkRequest.numberOfActions() == 0) {
+            LOGGER.error("批量更新操作失败！");
+            return counts;
+        }
+        bulkRequest.timeout(TimeValue.timeValueMinutes(2L));
+        bulkRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
+        BulkResponse bulkResponse;
+        try {
+            bulkResponse = doBulk(bulkRequest);
+        } finally {
+            abortDedup(dedupKeys, bulkRequest.numberOfActions());
+        }
+        for (BulkItemResponse bulkItemResponse : bulkResponse) {
+            if (bulkItemResponse.isFailed()) {
+                counts.merge("failed", 1, Integer::sum);
+                BulkItemResponse.Failure failure = bulkItemResponse.getFailure();
+                LOGGER.error("\"index={}, id={}\"的文档更新失败！", failure.getIndex(), failure.getId());
+                LOGGER.error("更新失败: {}", failure.getMessage());
+            } else if (bulkItemResponse.getResponse().getResult() == DocWriteResponse.Result.NOOP) {
+                counts.merge("noop", 1, Integer::sum);
+            } else {
+                counts.merge("updated", 1, Integer::sum);
+            }
         }
+        LOGGER.info("脚本批量更新操作完成！script: {}, {}", scriptId, counts);
+        return counts;
     }
 
     /**
@@ -516,21 +2240,54 @@ public class ElasticClient implements Closeable {
      * @param index
      * @param id
      * @param jsonString
+     * @return 执行结果，内容未变化时为NOOP，失败或写入暂存区时为null
+     * @throws IOException
+     */
+    public DocWriteResponse.Result updateDocByJson(String index, String id, String jsonString) throws IOException {
+        return updateDocByJson(index, id, jsonString, null);
+    }
+
+    /**
+     * 通过一个JSON字符串更新文档(指定路由)
+     * @param index
+     * @param id
+     * @param jsonString
+     * @param routing 路由键，需与写入时一致
+     * @return 执行结果，内容未变化时为NOOP，失败或写入暂存区时为null
      * @throws IOException
      */
-    public void updateDocByJson(String index, String id, String jsonString) throws IOException {
+    public DocWriteResponse.Result updateDocByJson(String index, String id, String jsonString, String routing) throws IOException {
         if (!Utils.validate(jsonString)) {
             LOGGER.error("非法的json字符串！");
-            return;
+            return null;
         }
-        if (!checkIndexExists(index)) {
-            createIndex(index);
+        long dedupKey = 0L;
+        long dedupBody = 0L;
+        if (writeDeduplicator.isEnabled()) {
+            dedupKey = writeDeduplicator.key(index, id, routing);
+            dedupBody = writeDeduplicator.body(jsonString);
+            if (writeDeduplicator.isUnchanged(dedupKey, dedupBody)) {
+                LOGGER.debug("\"index={}, id={}\"的文档内容未变化，跳过更新", index, id);
+                return DocWriteResponse.Result.NOOP;
+            }
         }
         UpdateRequest request = new UpdateRequest(index, id);
         request.doc(jsonString, XContentType.JSON);
+        if (StringUtils.isNotBlank(routing)) {
+            request.routing(routing);
+        }
         // 如果要更新的文档不存在，则根据传入的参数新建一个文档
         request.docAsUpsert(true);
+        long dedupTicket = writeDeduplicator.begin(dedupKey);
+        if (writeSpool.hasPending() && spool(Collections.singletonList(request))) {
+            writeDeduplicator.abort(dedupKey);
+            return null;
+        }
+        boolean completed = false;
         try {
+            if (!checkIndexExists(index)) {
+                createIndex(index);
+            }
             UpdateResponse response = client.update(request, RequestOptions.DEFAULT);
             String indexName = response.getIndex();
             String documentId = response.getId();
@@ -541,7 +2298,11 @@ public class ElasticClient implements Closeable {
             } else if (response.getResult() == DocWriteResponse.Result.DELETED) {
                 LOGGER.error("\"index={},id={}\"的文档已被删除！", indexName, documentId);
             } else if (response.getResult() == DocWriteResponse.Result.NOOP) {
-                LOGGER.error("操作没有被执行！");
+                LOGGER.info("\"index={},id={}\"的文档内容未变化，es未执行更新", indexName, documentId);
+            }
+            if (response.getResult() != DocWriteResponse.Result.DELETED) {
+                writeDeduplicator.complete(dedupKey, dedupTicket, dedupBody);
+                completed = true;
             }
 
             ReplicationResponse.ShardInfo shardInfo = response.getShardInfo();
@@ -554,29 +2315,48 @@ public class ElasticClient implements Closeable {
                     LOGGER.error("未处理原因：{}", reason);
                 }
             }
+            return response.getResult();
+        } catch (IOException e) {
+            if (!spool(Collections.singletonList(request))) {
+                throw e;
+            }
         } catch (ElasticsearchException e) {
+            if (WriteSpool.isUnavailable(e) && spool(Collections.singletonList(request))) {
+                return null;
+            }
             if (e.status() == RestStatus.NOT_FOUND) {
                 LOGGER.error("不存在这个文档！" );
             } else if (e.status() == RestStatus.CONFLICT) {
                 LOGGER.error("版本冲突异常！" );
             }
             LOGGER.error("更新失败！");
+        } finally {
+            if (!completed) {
+                writeDeduplicator.abort(dedupKey);
+            }
         }
+        return null;
     }
 
     /**
      * 批量增加文档
-     * @param params
+     * @param params 每项包含index、id、json，可选routing
+     * @return 批量操作结果
      * @throws IOException
      */
-    public void bulkAdd(List<Map<String, String>> params) throws IOException {
+    public BulkResult bulkAdd(List<Map<String, String>> params) throws IOException {
+        BulkResult result = new BulkResult("add");
         BulkRequest bulkRequest = new BulkRequest();
+        // 与bulkRequest中的请求一一对应
+        long[] dedupKeys = new long[params.size()];
         for (Map<String, String> dataMap : params) {
             String index = dataMap.getOrDefault(INDEX_KEY, INDEX);
             String id = dataMap.get("id");
             String jsonString = dataMap.get("json");
             if (StringUtils.isNotBlank(id) && Utils.validate(jsonString)) {
                 IndexRequest request=new IndexRequest(index).id(id).opType("create").source(jsonString, XContentType.JSON);
+                request.routing(dataMap.get(ROUTING_KEY));
+                dedupKeys[bulkRequest.numberOfActions()] = writeDeduplicator.begin(index, id, request.routing());
                 bulkRequest.add(request);
             }
         }
@@ -587,104 +2367,290 @@ public class ElasticClient implements Closeable {
 
         if (bulkRequest.numberOfActions() == 0) {
             LOGGER.error("批量增加操作失败！");
-            return;
+            return result;
         }
-        BulkResponse bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
-        // 全部操作成功
-        if (!bulkResponse.hasFailures()) {
-            LOGGER.info("批量增加操作成功！");
-        } else {
-            for (BulkItemResponse bulkItemResponse : bulkResponse) {
-                if (bulkItemResponse.isFailed()) {
-                    BulkItemResponse.Failure failure = bulkItemResponse.getFailure();
-                    LOGGER.error("\"index={}, id={}\"的文档增加失败！", failure.getIndex(), failure.getId());
-                    LOGGER.error("增加失败详情: {}", failure.getMessage());
-                } else {
-                    LOGGER.info("\"index={}, id={}\"的文档增加成功！", bulkItemResponse.getIndex(), bulkItemResponse.getId());
-                }
-            }
+        try {
+            return sendBulk(bulkRequest, result, null);
+        } finally {
+            abortDedup(dedupKeys, bulkRequest.numberOfActions());
         }
     }
 
     /**
-     * 批量更新文档
-     * @param params
+     * 批量更新文档(开启去重时，内容未变化的文档不再发送)
+     * @param params 每项包含index、id、json，可选routing
+     * @return 批量操作结果，skipped为客户端去重跳过的数量，noop为es判定未变化的数量
+     * @throws IOException
+     */
+    public BulkResult bulkUpdate(List<Map<String, String>> params) throws IOException {
+        return bulkUpdate(params, WriteRequest.RefreshPolicy.WAIT_UNTIL);
+    }
+
+    /**
+     * 批量更新文档(指定刷新策略，后台同步等不需要立即可查的写入使用NONE)
+     * @param params 每项包含index、id、json，可选routing
+     * @param refreshPolicy 刷新策略
+     * @return 批量操作结果，skipped为客户端去重跳过的数量，noop为es判定未变化的数量
      * @throws IOException
      */
-    public void bulkUpdate(List<Map<String, String>> params) throws IOException {
+    public BulkResult bulkUpdate(List<Map<String, String>> params, WriteRequest.RefreshPolicy refreshPolicy) throws IOException {
+        BulkResult result = new BulkResult("update");
         BulkRequest bulkRequest = new BulkRequest();
+        // 与bulkRequest中的请求一一对应
+        long[] dedupKeys = new long[params.size()];
+        long[] dedupBodies = new long[params.size()];
+        long[] dedupTickets = new long[params.size()];
         for (Map<String, String> dataMap : params) {
             String index = dataMap.getOrDefault(INDEX_KEY, INDEX);
             String id = dataMap.get("id");
             String jsonString = dataMap.get("json");
-            if (StringUtils.isNotBlank(id) && !Utils.validate(jsonString)) {
+            String routing = dataMap.get(ROUTING_KEY);
+            if (StringUtils.isNotBlank(id) && Utils.validate(jsonString)) {
+                if (writeDeduplicator.isEnabled()) {
+                    long dedupKey = writeDeduplicator.key(index, id, routing);
+                    long dedupBody = writeDeduplicator.body(jsonString);
+                    if (writeDeduplicator.isUnchanged(dedupKey, dedupBody)) {
+                        result.skip();
+                        continue;
+                    }
+                    dedupKeys[bulkRequest.numberOfActions()] = dedupKey;
+                    dedupBodies[bulkRequest.numberOfActions()] = dedupBody;
+                    dedupTickets[bulkRequest.numberOfActions()] = writeDeduplicator.begin(dedupKey);
+                }
                 UpdateRequest request = new UpdateRequest(index, id).doc(jsonString, XContentType.JSON);
                 request.docAsUpsert(true);
+                request.routing(routing);
                 bulkRequest.add(request);
             }
         }
         if (bulkRequest.numberOfActions() == 0) {
-            LOGGER.error("批量更新操作失败！");
-            return;
+            if (result.getSkipped() > 0) {
+                LOGGER.info("批量更新的{}个文档内容均未变化！", result.getSkipped());
+            } else {
+                LOGGER.error("批量更新操作失败！");
+            }
+            return result;
         }
         bulkRequest.timeout(TimeValue.timeValueMinutes(2L));
-        bulkRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
-        BulkResponse bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
-        if (!bulkResponse.hasFailures()) {
-            LOGGER.info("批量更新操作成功！");
-        } else {
-            for (BulkItemResponse bulkItemResponse : bulkResponse) {
-                if (bulkItemResponse.isFailed()) {
-                    BulkItemResponse.Failure failure = bulkItemResponse.getFailure();
-                    LOGGER.error("\"index={}, id={}\"的文档更新失败！", failure.getIndex(), failure.getId());
-                    LOGGER.error("更新失败: {}", failure.getMessage());
-                } else {
-                    LOGGER.info("\"index={}, id={}\"的文档更新成功！", bulkItemResponse.getIndex(), bulkItemResponse.getId());
-                }
-            }
+        bulkRequest.setRefreshPolicy(refreshPolicy);
+        try {
+            return sendBulk(bulkRequest, result, itemId -> {
+                writeDeduplicator.complete(dedupKeys[itemId], dedupTickets[itemId], dedupBodies[itemId]);
+                // 已结束的写入不再abort
+                dedupKeys[itemId] = 0L;
+            });
+        } finally {
+            abortDedup(dedupKeys, bulkRequest.numberOfActions());
         }
     }
 
     /**
      * 批量删除文档
-     * @param params
+     * @param params 每项包含index、id，可选routing
+     * @return 批量操作结果
+     * @throws IOException
+     */
+    public BulkResult bulkDelete(List<Map<String, String>> params) throws IOException {
+        return bulkDelete(params, WriteRequest.RefreshPolicy.WAIT_UNTIL);
+    }
+
+    /**
+     * 批量删除文档(指定刷新策略)
+     * @param params 每项包含index、id，可选routing
+     * @param refreshPolicy 刷新策略
+     * @return 批量操作结果
      * @throws IOException
      */
-    public void bulkDelete(List<Map<String, String>> params) throws IOException {
+    public BulkResult bulkDelete(List<Map<String, String>> params, WriteRequest.RefreshPolicy refreshPolicy) throws IOException {
+        BulkResult result = new BulkResult("delete");
         BulkRequest bulkRequest = new BulkRequest();
+        // 与bulkRequest中的请求一一对应
+        long[] dedupKeys = new long[params.size()];
         for (Map<String, String> dataMap : params) {
             String index = dataMap.getOrDefault(INDEX_KEY, INDEX);
             String id = dataMap.get("id");
             if (StringUtils.isNotBlank(id)){
                 DeleteRequest request = new DeleteRequest(index, id);
+                request.routing(dataMap.get(ROUTING_KEY));
+                dedupKeys[bulkRequest.numberOfActions()] = writeDeduplicator.begin(index, id, request.routing());
                 bulkRequest.add(request);
             }
         }
         if (bulkRequest.numberOfActions() == 0) {
             LOGGER.error("操作失败！");
-            return;
+            return result;
         }
         bulkRequest.timeout(TimeValue.timeValueMinutes(2L));
-        bulkRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
-        BulkResponse bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
-        if (!bulkResponse.hasFailures()) {
-            LOGGER.info("批量删除操作成功！");
-        } else {
-            for (BulkItemResponse bulkItemResponse : bulkResponse) {
-                if (bulkItemResponse.isFailed()) {
-                    BulkItemResponse.Failure failure = bulkItemResponse.getFailure();
-                    LOGGER.error("\"index={}, id={}\"的文档删除失败！", failure.getIndex(), failure.getId());
-                    LOGGER.error("删除失败: {}", failure.getMessage());
-                } else {
-                    LOGGER.info("\"index={}, id={}\"的文档删除成功！", bulkItemResponse.getIndex(), bulkItemResponse.getId());
+        bulkRequest.setRefreshPolicy(refreshPolicy);
+        try {
+            return sendBulk(bulkRequest, result, null);
+        } finally {
+            abortDedup(dedupKeys, bulkRequest.numberOfActions());
+        }
+    }
+
+    /**
+     * 批量请求结束后结束其中各文档未记录内容的去重写入
+     * @param dedupKeys 与批量请求中的请求一一对应的文档哈希，0为不需要结束
+     * @param count 请求数
+     */
+    private void abortDedup(long[] dedupKeys, int count) {
+        for (int i = 0; i < count; i++) {
+            if (dedupKeys[i] != 0L) {
+                writeDeduplicator.abort(dedupKeys[i]);
+            }
+        }
+    }
+
+    /**
+     * 发送批量请求并统计结果，被拒绝的写操作写入暂存区
+     * @param bulkRequest
+     * @param result 结果
+     * @param onSuccess 成功的操作序号回调，可为空
+     * @return
+     * @throws IOException
+     */
+    private BulkResult sendBulk(BulkRequest bulkRequest, BulkResult result, IntConsumer onSuccess) throws IOException {
+        result.sent(bulkRequest.numberOfActions(), bulkRequest.estimatedSizeInBytes());
+        BulkResponse bulkResponse = sendBulk(bulkRequest);
+        if (Objects.isNull(bulkResponse)) {
+            result.spool(bulkRequest.numberOfActions());
+            logBulk(result);
+            return result;
+        }
+        result.took(bulkResponse.getTook().millis());
+        List<DocWriteRequest<?>> rejected = new ArrayList<>();
+        List<BulkItemResponse.Failure> rejectedFailures = new ArrayList<>();
+        for (BulkItemResponse bulkItemResponse : bulkResponse) {
+            if (bulkItemResponse.isFailed()) {
+                BulkItemResponse.Failure failure = bulkItemResponse.getFailure();
+                if (writeSpool.isEnabled() && WriteSpool.isUnavailable(failure)) {
+                    // 被拒绝的写操作写入暂存区，稍后回放
+                    rejected.add(bulkRequest.requests().get(bulkItemResponse.getItemId()));
+                    rejectedFailures.add(failure);
+                    continue;
+                }
+                result.fail(failure.getId(), failure.getStatus().getStatus(), failure.getMessage());
+            } else {
+                result.succeed(bulkItemResponse.getResponse().getResult());
+                if (Objects.nonNull(onSuccess)) {
+                    onSuccess.accept(bulkItemResponse.getItemId());
+                }
+            }
+        }
+        if (!rejected.isEmpty()) {
+            if (spool(rejected)) {
+                result.spool(rejected.size());
+            } else {
+                for (BulkItemResponse.Failure failure : rejectedFailures) {
+                    result.fail(failure.getId(), failure.getStatus().getStatus(), failure.getMessage());
                 }
             }
         }
+        logBulk(result);
+        return result;
+    }
+
+    /**
+     * 输出批量操作汇总：有失败时输出失败数和前几个失败原因，全部成功时每bulkLogIntervalMillis最多输出一次
+     * @param result
+     */
+    private void logBulk(BulkResult result) {
+        if (result.getFailed() > 0) {
+            LOGGER.error("批量操作有{}个文档失败！{}，失败示例: {}", result.getFailed(), result, result.failureSample(BULK_LOG_FAILURE_SAMPLES));
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastBulkLog.get();
+        if (now - last >= bulkLogIntervalMillis && lastBulkLog.compareAndSet(last, now)) {
+            LOGGER.info("批量操作完成！{}，上次输出后另有{}次批量操作未输出", result, suppressedBulkLogs.getAndSet(0));
+        } else {
+            suppressedBulkLogs.incrementAndGet();
+        }
+    }
+
+    /**
+     * 发送批量请求，es不可用或暂存区还有未回放的写操作时写入暂存区
+     * @param bulkRequest
+     * @return 已写入暂存区时返回null
+     * @throws IOException
+     */
+    private BulkResponse sendBulk(BulkRequest bulkRequest) throws IOException {
+        if (writeSpool.hasPending() && spool(bulkRequest.requests())) {
+            return null;
+        }
+        try {
+            return doBulk(bulkRequest);
+        } catch (IOException | ElasticsearchException e) {
+            if (WriteSpool.isUnavailable(e) && spool(bulkRequest.requests())) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 执行查询(开启读写分离时发往只读集群)并记录慢查询
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    private SearchResponse doSearch(SearchRequest request) throws IOException {
+        long start = System.currentTimeMillis();
+        SearchResponse response = null;
+        Exception error = null;
+        try {
+            response = LoadAwareNodeSelector.withTraffic(LoadAwareNodeSelector.SEARCH,
+                    () -> clusterRouter.read(readClient -> readClient.encodedSearch(request, RequestOptions.DEFAULT)));
+            return response;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            slowLog.search(request, response, error, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * 执行批量操作并记录慢操作
+     * @param bulkRequest
+     * @return
+     * @throws IOException
+     */
+    private BulkResponse doBulk(BulkRequest bulkRequest) throws IOException {
+        long start = System.currentTimeMillis();
+        BulkResponse response = null;
+        Exception error = null;
+        try {
+            response = LoadAwareNodeSelector.withTraffic(LoadAwareNodeSelector.BULK,
+                    () -> client.encodedBulk(bulkRequest, RequestOptions.DEFAULT));
+            return response;
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            slowLog.bulk(bulkRequest, response, error, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * 写入暂存区
+     * @param requests
+     * @return 是否写入成功(未开启暂存区返回false)
+     */
+    private boolean spool(List<? extends DocWriteRequest<?>> requests) {
+        boolean spooled = writeSpool.append(requests);
+        if (spooled) {
+            LOGGER.error("es不可用，{}条写操作已写入暂存区！", requests.size());
+        } else if (writeSpool.isEnabled()) {
+            LOGGER.error("{}条写操作写入暂存区失败！", requests.size());
+        }
+        return spooled;
     }
 
     /**
      * 批量查找文档
-     * @param params
+     * @param params 每项包含index、id，可选routing
      * @return
      * @throws IOException
      */
@@ -696,12 +2662,22 @@ public class ElasticClient implements Closeable {
             String index = dataMap.getOrDefault(INDEX_KEY, INDEX);
             String id = dataMap.get("id");
             if (StringUtils.isNotBlank(id)) {
-                request.add(new MultiGetRequest.Item(index, id));
+                request.add(new MultiGetRequest.Item(index, id).routing(dataMap.get(ROUTING_KEY)));
             }
         }
         request.realtime(false);
         request.refresh(true);
-        MultiGetResponse response = client.mget(request, RequestOptions.DEFAULT);
+        long start = System.currentTimeMillis();
+        MultiGetResponse response = null;
+        Exception error = null;
+        try {
+            response = clusterRouter.read(readClient -> readClient.mget(request, RequestOptions.DEFAULT));
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            slowLog.mget(request, response, error, System.currentTimeMillis() - start);
+        }
         List<Map<String, Object>> list = parseMGetResponse(response);
         if (!list.isEmpty()) {
             resultList.addAll(list);
@@ -733,6 +2709,23 @@ public class ElasticClient implements Closeable {
         return list;
     }
 
+    /**
+     * 解析es的profile结果
+     * @param response
+     * @return 每个分片的耗时明细
+     * @throws IOException
+     */
+    private Object parseProfileResults(SearchResponse response) throws IOException {
+        if (Objects.isNull(response.getProfileResults())) {
+            return Collections.emptyList();
+        }
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        new SearchProfileShardResults(response.getProfileResults()).toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        JSONObject profile = JSONObject.parseObject(Strings.toString(builder)).getJSONObject(SearchProfileShardResults.PROFILE_FIELD);
+        return profile.get("shards");
+    }
+
     private List<Map<String, Object>> parseSearchResponse(SearchResponse response){
         List<Map<String, Object>> resultList = new ArrayList<>();
         SearchHit[] hits = response.getHits().getHits();
@@ -0,0 +1,304 @@
+package cn.sign.elasticsearch;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.StringJoiner;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 支持传输压缩和Smile编码的客户端
+ * <p>
+ * 7.5的RestClient不支持压缩，bulk和search的请求在这里自行编码：请求体超过compressionMinBytes时gzip压缩，
+ * 并通过Accept-Encoding接收gzip响应(包括错误响应)后解压；开启smile时bulk请求体使用Smile编码，bulk和search的响应也使用Smile。
+ * 配置了缓冲区池时bulk请求体直接编码(和压缩)到池化缓冲区中发送，请求成功后归还。
+ * 请求通过低级客户端发送，参数与RestHighLevelClient的转换一致。都未开启时直接使用RestHighLevelClient的默认实现
+ */
+public class EsRestClient extends RestHighLevelClient {
+
+    private static final String GZIP = "gzip";
+
+    private final boolean compression;
+    private final int compressionMinBytes;
+    private final boolean smile;
+    private final BufferPool bufferPool;
+
+    /**
+     * @param builder
+     * @param compression 是否gzip压缩
+     * @param compressionMinBytes 请求体达到该大小才压缩
+     * @param smile 是否使用Smile编码
+     * @param bufferPool bulk请求体的缓冲区池，为空则不使用
+     */
+    public EsRestClient(RestClientBuilder builder, boolean compression, int compressionMinBytes, boolean smile, BufferPool bufferPool) {
+        super(builder);
+        this.compression = compression;
+        this.compressionMinBytes = compressionMinBytes;
+        this.smile = smile;
+        this.bufferPool = bufferPool;
+    }
+
+    public boolean isEncoded() {
+        return compression || smile;
+    }
+
+    /**
+     * 批量写入，按配置压缩或使用Smile编码
+     * @param bulkRequest
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public BulkResponse encodedBulk(BulkRequest bulkRequest, RequestOptions options) throws IOException {
+        if (bufferPool != null) {
+            return pooledBulk(bulkRequest, options);
+        }
+        if (!isEncoded()) {
+            return bulk(bulkRequest, options);
+        }
+        return performEncoded(toBulkRequest(bulkRequest), options, BulkResponse::fromXContent);
+    }
+
+    /**
+     * 请求体直接编码到池化缓冲区，文档内容从请求中只复制一次
+     */
+    private BulkResponse pooledBulk(BulkRequest bulkRequest, RequestOptions options) throws IOException {
+        validate(bulkRequest);
+        BulkBody body = new BulkBody(bufferPool);
+        Request request = bulkEndpoint(bulkRequest);
+        try {
+            XContentType xContentType = smile ? XContentType.SMILE : XContentType.JSON;
+            boolean gzip = compression && bulkRequest.estimatedSizeInBytes() >= compressionMinBytes;
+            if (gzip) {
+                try (GZIPOutputStream out = new GZIPOutputStream(body, 8192)) {
+                    BulkEncoder.encode(bulkRequest, xContentType, out);
+                }
+            } else {
+                BulkEncoder.encode(bulkRequest, xContentType, body);
+            }
+            request.setEntity(body.toEntity(ContentType.create(BulkEncoder.contentType(xContentType), (String) null), gzip ? GZIP : null));
+        } catch (IOException | RuntimeException e) {
+            body.release();
+            throw e;
+        }
+        BulkResponse response = performEncoded(request, options, BulkResponse::fromXContent);
+        // 请求失败时连接可能仍在读取缓冲区，不归还，由GC回收
+        body.release();
+        return response;
+    }
+
+    /**
+     * 查询，按配置压缩请求和响应，响应可使用Smile编码
+     * @param searchRequest
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public SearchResponse encodedSearch(SearchRequest searchRequest, RequestOptions options) throws IOException {
+        if (!isEncoded()) {
+            return search(searchRequest, options);
+        }
+        validate(searchRequest);
+        return performEncoded(toSearchRequest(searchRequest), options, SearchResponse::fromXContent);
+    }
+
+    /**
+     * 通过低级客户端发送请求并解析响应，错误响应同样先解压再解析为ElasticsearchException
+     */
+    private <T> T performEncoded(Request request, RequestOptions options, CheckedFunction<XContentParser, T, IOException> parser)
+            throws IOException {
+        request.setOptions(encodedOptions(options));
+        Response response;
+        try {
+            response = getLowLevelClient().performRequest(request);
+        } catch (ResponseException e) {
+            throw parseErrorResponse(e);
+        }
+        return parseEntity(decompress(response), parser);
+    }
+
+    /**
+     * 与RestHighLevelClient.parseResponseException一致，但先解压响应体
+     */
+    private ElasticsearchStatusException parseErrorResponse(ResponseException responseException) {
+        Response response = responseException.getResponse();
+        RestStatus status = RestStatus.fromCode(response.getStatusLine().getStatusCode());
+        if (response.getEntity() == null) {
+            return new ElasticsearchStatusException(responseException.getMessage(), status, responseException);
+        }
+        ElasticsearchStatusException exception;
+        try {
+            exception = parseEntity(decompress(response), BytesRestResponse::errorFromXContent);
+            exception.addSuppressed(responseException);
+        } catch (Exception e) {
+            exception = new ElasticsearchStatusException("Unable to parse response body", status, responseException);
+            exception.addSuppressed(e);
+        }
+        return exception;
+    }
+
+    private static void validate(ActionRequest request) {
+        ActionRequestValidationException exception = request.validate();
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private Request toBulkRequest(BulkRequest bulkRequest) throws IOException {
+        validate(bulkRequest);
+        Request request = bulkEndpoint(bulkRequest);
+        XContentType xContentType = smile ? XContentType.SMILE : XContentType.JSON;
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.min(bulkRequest.estimatedSizeInBytes(), Integer.MAX_VALUE - 8));
+        BulkEncoder.encode(bulkRequest, xContentType, body);
+        request.setEntity(entity(body.toByteArray(), BulkEncoder.contentType(xContentType)));
+        return request;
+    }
+
+    private Request bulkEndpoint(BulkRequest bulkRequest) {
+        Request request = new Request("POST", "/_bulk");
+        if (bulkRequest.timeout() != null) {
+            request.addParameter("timeout", bulkRequest.timeout().getStringRep());
+        }
+        if (bulkRequest.getRefreshPolicy() != WriteRequest.RefreshPolicy.NONE) {
+            request.addParameter("refresh", bulkRequest.getRefreshPolicy().getValue());
+        }
+        if (bulkRequest.pipeline() != null) {
+            request.addParameter("pipeline", bulkRequest.pipeline());
+        }
+        if (bulkRequest.routing() != null) {
+            request.addParameter("routing", bulkRequest.routing());
+        }
+        return request;
+    }
+
+    /**
+     * 与RequestConverters.search的参数一致；已废弃的types不支持
+     */
+    @SuppressWarnings("deprecation")
+    Request toSearchRequest(SearchRequest searchRequest) throws IOException {
+        if (searchRequest.types().length > 0) {
+            throw new IllegalArgumentException("不支持指定types的查询");
+        }
+        StringJoiner indices = new StringJoiner(",");
+        for (String index : searchRequest.indices()) {
+            indices.add(encodePart(index));
+        }
+        Request request = new Request("POST", indices.length() == 0 ? "/_search" : "/" + indices + "/_search");
+        // 聚合结果按类型解析需要typed_keys
+        request.addParameter("typed_keys", "true");
+        if (searchRequest.routing() != null) {
+            request.addParameter("routing", searchRequest.routing());
+        }
+        if (searchRequest.preference() != null) {
+            request.addParameter("preference", searchRequest.preference());
+        }
+        addIndicesOptions(request, searchRequest.indicesOptions());
+        request.addParameter("search_type", searchRequest.searchType().name().toLowerCase(Locale.ROOT));
+        request.addParameter("ccs_minimize_roundtrips", Boolean.toString(searchRequest.isCcsMinimizeRoundtrips()));
+        request.addParameter("pre_filter_shard_size", Integer.toString(searchRequest.getPreFilterShardSize()));
+        request.addParameter("max_concurrent_shard_requests", Integer.toString(searchRequest.getMaxConcurrentShardRequests()));
+        if (searchRequest.getBatchedReduceSize() != SearchRequest.DEFAULT_BATCHED_REDUCE_SIZE) {
+            request.addParameter("batched_reduce_size", Integer.toString(searchRequest.getBatchedReduceSize()));
+        }
+        if (searchRequest.requestCache() != null) {
+            request.addParameter("request_cache", searchRequest.requestCache().toString());
+        }
+        if (searchRequest.allowPartialSearchResults() != null) {
+            request.addParameter("allow_partial_search_results", searchRequest.allowPartialSearchResults().toString());
+        }
+        if (searchRequest.scroll() != null) {
+            request.addParameter("scroll", searchRequest.scroll().keepAlive().getStringRep());
+        }
+        if (searchRequest.source() != null) {
+            BytesReference source = XContentHelper.toXContent(searchRequest.source(), XContentType.JSON, false);
+            request.setEntity(entity(BytesReference.toBytes(source), XContentType.JSON.mediaTypeWithoutParameters()));
+        }
+        return request;
+    }
+
+    private static void addIndicesOptions(Request request, IndicesOptions indicesOptions) {
+        request.addParameter("ignore_unavailable", Boolean.toString(indicesOptions.ignoreUnavailable()));
+        request.addParameter("allow_no_indices", Boolean.toString(indicesOptions.allowNoIndices()));
+        StringJoiner expandWildcards = new StringJoiner(",");
+        if (indicesOptions.expandWildcardsOpen()) {
+            expandWildcards.add("open");
+        }
+        if (indicesOptions.expandWildcardsClosed()) {
+            expandWildcards.add("closed");
+        }
+        request.addParameter("expand_wildcards", expandWildcards.length() == 0 ? "none" : expandWildcards.toString());
+    }
+
+    /**
+     * 按路径片段编码(与RequestConverters.EndpointBuilder一致)，"/"也编码
+     */
+    private static String encodePart(String part) {
+        try {
+            return new URI(null, null, null, -1, "/" + part, null, null).getRawPath().substring(1).replaceAll("/", "%2F");
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("路径无法编码: " + part, e);
+        }
+    }
+
+    private HttpEntity entity(byte[] body, String mimeType) throws IOException {
+        ContentType contentType = ContentType.create(mimeType, (String) null);
+        if (!compression || body.length < compressionMinBytes) {
+            return new ByteArrayEntity(body, contentType);
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        }
+        ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray(), contentType);
+        entity.setContentEncoding(GZIP);
+        return entity;
+    }
+
+    private RequestOptions encodedOptions(RequestOptions options) {
+        RequestOptions.Builder builder = options.toBuilder();
+        if (compression) {
+            builder.addHeader("Accept-Encoding", GZIP);
+        }
+        if (smile) {
+            builder.addHeader("Accept", XContentType.SMILE.mediaTypeWithoutParameters());
+        }
+        return builder.build();
+    }
+
+    private static HttpEntity decompress(Response response) {
+        HttpEntity entity = response.getEntity();
+        if (entity != null && GZIP.equalsIgnoreCase(response.getHeader("Content-Encoding"))) {
+            entity = new GzipDecompressingEntity(entity);
+        }
+        return entity;
+    }
+}
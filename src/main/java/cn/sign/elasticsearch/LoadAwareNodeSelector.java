@@ -0,0 +1,302 @@
+package cn.sign.elasticsearch;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.CheckedSupplier;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按节点负载选择协调节点
+ * <p>
+ * 查询和批量写入可以分别限定节点角色(如coordinating、ingest)，节点得分为 (延迟EWMA + 失败惩罚) * (进行中请求数 + 1)，
+ * 去掉得分超过最优节点TOLERANCE倍的节点，其余节点由RestClient轮询，并在节点失败时依次重试。
+ * 至少保留两个节点(不足时补充不符合角色的节点)，保证请求可以切换到其他节点。
+ * 延迟和进行中请求数由http拦截器在客户端统计。流量类型通过withTraffic在当前线程上指定，RestClient在调用线程上选择节点
+ * <p>
+ * RestClient在select之后会轮转节点列表，节点顺序不会保留，所以这里只能删除节点，不能按得分排序
+ */
+public class LoadAwareNodeSelector implements NodeSelector {
+
+    public static final String SEARCH = "search";
+    public static final String BULK = "bulk";
+
+    private static final String START_ATTRIBUTE = LoadAwareNodeSelector.class.getName() + ".start";
+    private static final ThreadLocal<String> TRAFFIC = new ThreadLocal<>();
+
+    /**
+     * 每次失败增加的惩罚延迟(毫秒)，降低故障节点的权重
+     */
+    private static final double FAILURE_PENALTY_MILLIS = 5000D;
+    /**
+     * 惩罚延迟的半衰期(毫秒)，节点恢复后逐渐重新获得流量
+     */
+    private static final double PENALTY_HALF_LIFE_MILLIS = 10000D;
+    /**
+     * 得分不超过最优节点的该倍数的节点参与轮询
+     */
+    private static final double TOLERANCE = 2D;
+    /**
+     * 至少保留的节点数，用于失败重试
+     */
+    private static final int MIN_NODES = 2;
+
+    private final Map<String, Set<String>> trafficRoles = new HashMap<>();
+    private final double alpha;
+    private final Map<HttpHost, NodeStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * @param searchRoles 查询可用的节点角色(master/data/ingest/coordinating)，为空则不限制
+     * @param bulkRoles 批量写入可用的节点角色，为空则不限制
+     * @param alpha 延迟EWMA的权重(0-1)，越大越偏向最近的延迟
+     */
+    public LoadAwareNodeSelector(Collection<String> searchRoles, Collection<String> bulkRoles, double alpha) {
+        trafficRoles.put(SEARCH, new HashSet<>(searchRoles));
+        trafficRoles.put(BULK, new HashSet<>(bulkRoles));
+        this.alpha = alpha;
+    }
+
+    /**
+     * 以指定流量类型执行请求
+     * @param traffic SEARCH或BULK
+     * @param call
+     * @return
+     * @throws IOException
+     */
+    public static <T> T withTraffic(String traffic, CheckedSupplier<T, IOException> call) throws IOException {
+        String previous = TRAFFIC.get();
+        TRAFFIC.set(traffic);
+        try {
+            return call.get();
+        } finally {
+            if (previous == null) {
+                TRAFFIC.remove();
+            } else {
+                TRAFFIC.set(previous);
+            }
+        }
+    }
+
+    @Override
+    public void select(Iterable<Node> nodes) {
+        Set<String> roles = Objects.isNull(TRAFFIC.get()) ? Collections.emptySet() : trafficRoles.get(TRAFFIC.get());
+        double defaultLatency = averageLatency();
+        Map<Node, Double> scores = new HashMap<>();
+        List<Node> candidates = new ArrayList<>();
+        List<Node> others = new ArrayList<>();
+        for (Node node : nodes) {
+            scores.put(node, score(node, defaultLatency));
+            (hasRole(node, roles) ? candidates : others).add(node);
+        }
+        if (candidates.isEmpty()) {
+            // 没有符合角色的存活节点时不限制角色
+            candidates = others;
+            others = Collections.emptyList();
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        Comparator<Node> byScore = Comparator.comparing(scores::get);
+        candidates.sort(byScore);
+        others.sort(byScore);
+        double limit = scores.get(candidates.get(0)) * TOLERANCE;
+        Set<Node> retained = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Node node : candidates) {
+            if (retained.size() < MIN_NODES || scores.get(node) <= limit) {
+                retained.add(node);
+            }
+        }
+        for (Iterator<Node> iterator = others.iterator(); retained.size() < MIN_NODES && iterator.hasNext(); ) {
+            retained.add(iterator.next());
+        }
+        for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext(); ) {
+            if (!retained.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 请求发送前记录开始时间和进行中请求数
+     */
+    public HttpRequestInterceptor requestInterceptor() {
+        return (request, context) -> {
+            HttpHost host = HttpCoreContext.adapt(context).getTargetHost();
+            if (host != null) {
+                stats(host).inFlight.incrementAndGet();
+                context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+            }
+        };
+    }
+
+    /**
+     * 收到响应后统计延迟。502/503/504随后还会触发failureListener，只记录已收到响应，由failureListener计入惩罚
+     */
+    public HttpResponseInterceptor responseInterceptor() {
+        return (response, context) -> {
+            Object start = context.removeAttribute(START_ATTRIBUTE);
+            HttpHost host = HttpCoreContext.adapt(context).getTargetHost();
+            if (start != null && host != null) {
+                NodeStats nodeStats = stats(host);
+                nodeStats.finish();
+                if (isRetryStatus(response.getStatusLine().getStatusCode())) {
+                    nodeStats.respondedFailures.incrementAndGet();
+                } else {
+                    nodeStats.record((System.nanoTime() - (long) start) / 1_000_000D, alpha);
+                }
+            }
+        };
+    }
+
+    /**
+     * 请求失败(连接失败、超时或502/503/504)时计入惩罚延迟，未收到响应的请求在这里结束
+     */
+    public RestClient.FailureListener failureListener() {
+        return new RestClient.FailureListener() {
+            @Override
+            public void onFailure(Node node) {
+                NodeStats nodeStats = stats(node.getHost());
+                if (nodeStats.respondedFailures.getAndUpdate(count -> count > 0 ? count - 1 : 0) == 0) {
+                    nodeStats.finish();
+                }
+                nodeStats.penalize();
+            }
+        };
+    }
+
+    /**
+     * 各节点的延迟EWMA(毫秒)和进行中请求数
+     * @return
+     */
+    public Map<String, Map<String, Object>> getStats() {
+        Map<String, Map<String, Object>> result = new TreeMap<>();
+        stats.forEach((host, nodeStats) -> {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("latencyMillis", nodeStats.latency);
+            map.put("penaltyMillis", nodeStats.penalty());
+            map.put("inFlight", nodeStats.inFlight.get());
+            result.put(host.toURI(), map);
+        });
+        return result;
+    }
+
+    /**
+     * 还没有延迟统计的节点按defaultLatency计算，进行中的请求同样计入
+     */
+    private double score(Node node, double defaultLatency) {
+        NodeStats nodeStats = stats(node.getHost());
+        double latency = nodeStats.latency == 0D ? defaultLatency : nodeStats.latency;
+        return (latency + nodeStats.penalty()) * (nodeStats.inFlight.get() + 1);
+    }
+
+    /**
+     * 已统计节点的平均延迟，都没有统计时为1毫秒
+     */
+    private double averageLatency() {
+        double sum = 0D;
+        int count = 0;
+        for (NodeStats nodeStats : stats.values()) {
+            if (nodeStats.latency > 0D) {
+                sum += nodeStats.latency;
+                count++;
+            }
+        }
+        return count == 0 ? 1D : sum / count;
+    }
+
+    private NodeStats stats(HttpHost host) {
+        return stats.computeIfAbsent(host, key -> new NodeStats());
+    }
+
+    /**
+     * 与RestClient一致，这些状态码会换节点重试并触发failureListener
+     */
+    private static boolean isRetryStatus(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * 节点角色未知(未配置)时视为符合
+     */
+    private static boolean hasRole(Node node, Set<String> roles) {
+        if (roles.isEmpty() || Objects.isNull(node.getRoles())) {
+            return true;
+        }
+        Node.Roles nodeRoles = node.getRoles();
+        return (roles.contains("master") && nodeRoles.isMasterEligible())
+                || (roles.contains("data") && nodeRoles.isData())
+                || (roles.contains("ingest") && nodeRoles.isIngest())
+                || (roles.contains("coordinating") && !nodeRoles.isMasterEligible() && !nodeRoles.isData() && !nodeRoles.isIngest());
+    }
+
+    private static class NodeStats {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        /**
+         * 已在响应拦截器中结束、还未经过failureListener的失败请求数
+         */
+        private final AtomicInteger respondedFailures = new AtomicInteger();
+        /**
+         * 保护延迟和惩罚的更新，不用synchronized，避免在虚拟线程上占住载体线程
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+        /**
+         * 成功响应的延迟EWMA，新节点为0
+         */
+        private volatile double latency;
+        /**
+         * 最近一次失败时的惩罚延迟和时间，按半衰期衰减
+         */
+        private double failurePenalty;
+        private long failedAt;
+
+        private void finish() {
+            inFlight.getAndUpdate(count -> count > 0 ? count - 1 : 0);
+        }
+
+        private void record(double millis, double alpha) {
+            lock.lock();
+            try {
+                latency = latency == 0D ? millis : latency + alpha * (millis - latency);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void penalize() {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                failurePenalty = decayed(now) + FAILURE_PENALTY_MILLIS;
+                failedAt = now;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private double penalty() {
+            lock.lock();
+            try {
+                return decayed(System.nanoTime());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private double decayed(long now) {
+            if (failurePenalty == 0D) {
+                return 0D;
+            }
+            return failurePenalty * Math.pow(0.5D, (now - failedAt) / 1_000_000D / PENALTY_HALF_LIFE_MILLIS);
+        }
+    }
+}
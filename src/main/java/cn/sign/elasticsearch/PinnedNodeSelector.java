@@ -0,0 +1,69 @@
+package cn.sign.elasticsearch;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.common.CheckedSupplier;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * 可以把请求固定到指定节点的NodeSelector
+ * <p>
+ * 通过onNode在当前线程上指定节点时只保留该节点(节点不可用时请求直接失败，不切换到其他节点)，
+ * 否则交给delegate选择。RestClient在调用线程上选择节点，异步请求同样适用。用于预热时向每个节点建立连接
+ */
+public class PinnedNodeSelector implements NodeSelector {
+
+    private static final ThreadLocal<HttpHost> NODE = new ThreadLocal<>();
+
+    private final NodeSelector delegate;
+
+    /**
+     * @param delegate 未指定节点时使用的选择器
+     */
+    public PinnedNodeSelector(NodeSelector delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * 在指定节点上发送请求
+     * @param host 节点地址
+     * @param call
+     * @return
+     * @throws IOException
+     */
+    public static <T> T onNode(HttpHost host, CheckedSupplier<T, IOException> call) throws IOException {
+        HttpHost previous = NODE.get();
+        NODE.set(host);
+        try {
+            return call.get();
+        } finally {
+            if (previous == null) {
+                NODE.remove();
+            } else {
+                NODE.set(previous);
+            }
+        }
+    }
+
+    @Override
+    public void select(Iterable<Node> nodes) {
+        HttpHost host = NODE.get();
+        if (host == null) {
+            delegate.select(nodes);
+            return;
+        }
+        for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext(); ) {
+            if (!host.equals(iterator.next().getHost())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PINNED(" + delegate + ")";
+    }
+}
@@ -0,0 +1,158 @@
+package cn.sign.elasticsearch;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.query.*;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.ScoreSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+
+/**
+ * 查询改写：把不需要算分的子句移到filter中，filter中的子句不算分且可以被节点的查询缓存命中
+ * <p>
+ * 不按_score排序时，must中的term/terms/range/exists子句移到filter；没有must和filter时的should子句(至少命中一个)
+ * 整体移到filter。任何情况下must中的constant_score子句视为标记为不算分，其内部查询移到filter。
+ * 只有默认boost、无名称的嵌套bool会被展开合并到上层。不修改传入的查询对象
+ */
+@Component
+public class QueryOptimizer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryOptimizer.class);
+
+    @Value("${es.queryOptimizer.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 改写查询
+     * @param query 原查询
+     * @param scoring 是否需要算分(按_score排序)
+     * @return 改写后的查询，未开启时返回原查询
+     */
+    public QueryBuilder optimize(QueryBuilder query, boolean scoring) {
+        if (!enabled || !(query instanceof BoolQueryBuilder)) {
+            return query;
+        }
+        QueryBuilder optimized = rewrite(query, scoring);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("查询改写: {} => {}", Strings.toString(query), Strings.toString(optimized));
+        }
+        return optimized;
+    }
+
+    private QueryBuilder rewrite(QueryBuilder query, boolean scoring) {
+        if (!(query instanceof BoolQueryBuilder)) {
+            return query;
+        }
+        BoolQueryBuilder source = (BoolQueryBuilder) query;
+        BoolQueryBuilder target = QueryBuilders.boolQuery()
+                .boost(source.boost())
+                .queryName(source.queryName())
+                .minimumShouldMatch(source.minimumShouldMatch())
+                .adjustPureNegative(source.adjustPureNegative());
+
+        for (QueryBuilder clause : source.filter()) {
+            addFilter(target, rewrite(clause, false));
+        }
+        for (QueryBuilder clause : source.must()) {
+            QueryBuilder rewritten = rewrite(clause, scoring);
+            if (isMarkedNonScoring(rewritten)) {
+                addFilter(target, ((ConstantScoreQueryBuilder) rewritten).innerQuery());
+            } else if (!scoring && isFilterClause(rewritten)) {
+                target.filter(rewritten);
+            } else {
+                addMust(target, rewritten);
+            }
+        }
+        for (QueryBuilder clause : source.mustNot()) {
+            target.mustNot(rewrite(clause, false));
+        }
+        boolean shouldRequired = source.must().isEmpty() && source.filter().isEmpty()
+                && Objects.isNull(source.minimumShouldMatch());
+        if (!scoring && shouldRequired && !source.should().isEmpty()) {
+            // 没有must和filter时should至少命中一个，不算分时等价于filter中的should
+            if (source.should().size() == 1) {
+                addFilter(target, rewrite(source.should().get(0), false));
+            } else {
+                BoolQueryBuilder any = QueryBuilders.boolQuery();
+                for (QueryBuilder clause : source.should()) {
+                    any.should(rewrite(clause, false));
+                }
+                target.filter(any);
+            }
+        } else {
+            for (QueryBuilder clause : source.should()) {
+                target.should(rewrite(clause, scoring));
+            }
+        }
+        return target;
+    }
+
+    /**
+     * 加入filter，只含filter/must子句的嵌套bool展开到上层
+     */
+    private void addFilter(BoolQueryBuilder target, QueryBuilder clause) {
+        if (isPlainBool(clause) && ((BoolQueryBuilder) clause).should().isEmpty()
+                && ((BoolQueryBuilder) clause).mustNot().isEmpty()) {
+            BoolQueryBuilder nested = (BoolQueryBuilder) clause;
+            if (!nested.must().isEmpty() || !nested.filter().isEmpty()) {
+                nested.must().forEach(target::filter);
+                nested.filter().forEach(target::filter);
+                return;
+            }
+        }
+        target.filter(clause);
+    }
+
+    /**
+     * 加入must，只含must/filter子句的嵌套bool展开到上层
+     */
+    private void addMust(BoolQueryBuilder target, QueryBuilder clause) {
+        if (isPlainBool(clause) && ((BoolQueryBuilder) clause).should().isEmpty()
+                && ((BoolQueryBuilder) clause).mustNot().isEmpty()) {
+            BoolQueryBuilder nested = (BoolQueryBuilder) clause;
+            if (!nested.must().isEmpty() || !nested.filter().isEmpty()) {
+                nested.must().forEach(target::must);
+                nested.filter().forEach(target::filter);
+                return;
+            }
+        }
+        target.must(clause);
+    }
+
+    /**
+     * 默认boost、无名称、无minimumShouldMatch的bool
+     */
+    private static boolean isPlainBool(QueryBuilder clause) {
+        if (!(clause instanceof BoolQueryBuilder)) {
+            return false;
+        }
+        BoolQueryBuilder bool = (BoolQueryBuilder) clause;
+        return bool.boost() == AbstractQueryBuilder.DEFAULT_BOOST && Objects.isNull(bool.queryName())
+                && Objects.isNull(bool.minimumShouldMatch());
+    }
+
+    private static boolean isMarkedNonScoring(QueryBuilder clause) {
+        return clause instanceof ConstantScoreQueryBuilder && Objects.isNull(clause.queryName())
+                && clause.boost() == AbstractQueryBuilder.DEFAULT_BOOST;
+    }
+
+    private static boolean isFilterClause(QueryBuilder clause) {
+        return clause instanceof TermQueryBuilder || clause instanceof TermsQueryBuilder
+                || clause instanceof RangeQueryBuilder || clause instanceof ExistsQueryBuilder;
+    }
+
+    /**
+     * 是否按_score排序
+     * @param sort 排序，为空时使用默认的字段排序
+     * @return
+     */
+    public static boolean isScoreSort(SortBuilder<?> sort) {
+        return sort instanceof ScoreSortBuilder
+                || (sort instanceof FieldSortBuilder && ScoreSortBuilder.NAME.equals(((FieldSortBuilder) sort).getFieldName()));
+    }
+}
@@ -0,0 +1,83 @@
+package cn.sign.elasticsearch;
+
+import lombok.Data;
+
+/**
+ * 后台重建索引任务
+ */
+@Data
+public class ReindexTask {
+    /**
+     * 读写别名
+     */
+    private String alias;
+    /**
+     * 旧索引
+     */
+    private String sourceIndex;
+    /**
+     * 新的版本索引
+     */
+    private String destIndex;
+    /**
+     * es任务id(node:id)，也是该重建任务的标识
+     */
+    private String taskId;
+    /**
+     * 当前补齐任务的es任务id
+     */
+    private String catchUpTaskId;
+    /**
+     * 下一轮补齐的起点：旧索引各主分片最大_seq_no中的最小值，补齐_seq_no大于它的文档
+     */
+    private volatile long seqNoCheckpoint;
+    /**
+     * 已提交的补齐轮数
+     */
+    private volatile int catchUpRounds;
+    /**
+     * 切换别名后是否删除旧索引
+     */
+    private Boolean deleteSourceIndex;
+    /**
+     * 任务开始时间(毫秒时间戳)
+     */
+    private Long startTime;
+    /**
+     * 旧索引是否已禁止写入
+     */
+    private volatile boolean sourceBlocked;
+    /**
+     * 旧索引禁止写入的时间(毫秒时间戳)
+     */
+    private volatile Long blockedAt;
+    /**
+     * 任务结束时间(毫秒时间戳)
+     */
+    private volatile Long finishTime;
+    /**
+     * 任务状态
+     */
+    private volatile State state;
+
+    public enum State {
+        /**
+         * 全量拷贝中，旧索引正常读写
+         */
+        RUNNING,
+        /**
+         * 按_seq_no分轮补齐拷贝期间的变更，旧索引正常读写
+         */
+        CATCHING_UP,
+        /**
+         * 变更已足够少，旧索引禁止写入，补齐最后一轮并删除多出的文档
+         */
+        FINALIZING,
+        /**
+         * 别名已切换到新索引
+         */
+        SWITCHED,
+        FAILED,
+        CANCELLED
+    }
+}
@@ -0,0 +1,39 @@
+package cn.sign.elasticsearch;
+
+import lombok.Data;
+
+/**
+ * 单次查询的耗时分析：es的profile结果和客户端各阶段耗时
+ */
+@Data
+public class SearchProfile {
+    /**
+     * 请求属性名，设置后WebConfig中的json转换器在响应头X-Render-Micros中返回渲染耗时
+     */
+    public static final String RENDER_ATTRIBUTE = "es.profile";
+
+    /**
+     * 查询语句序列化耗时(微秒)
+     */
+    private long serializeMicros;
+    /**
+     * 请求耗时(微秒)，从发送请求到拿到解析后的响应
+     */
+    private long requestMicros;
+    /**
+     * es返回的耗时(毫秒)
+     */
+    private long took;
+    /**
+     * 网络和等待耗时(微秒)，即请求耗时减去es耗时
+     */
+    private long networkMicros;
+    /**
+     * parseSearchResponse耗时(微秒)
+     */
+    private long parseMicros;
+    /**
+     * 每个分片的query和collector耗时明细(es profile结果)
+     */
+    private Object shards;
+}
@@ -0,0 +1,262 @@
+package cn.sign.elasticsearch;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * es慢操作日志
+ * <p>
+ * 按操作类型配置阈值，超过阈值的操作按采样率和每秒上限记录查询语句(或批量摘要)、耗时、命中数和分片数，
+ * 写入独立的日志并保留最近的记录供接口查询。失败的操作同样按耗时判断，记录异常信息。
+ * 未超过阈值的操作只有一次比较的开销，查询语句只在确定记录时才序列化
+ */
+@Component
+public class SlowLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("es.slowlog");
+
+    public static final String SEARCH = "search";
+    public static final String BULK = "bulk";
+    public static final String MGET = "mget";
+
+    @Value("${es.slowlog.enabled:false}")
+    private boolean enabled;
+    @Value("${es.slowlog.threshold.search:1000}")
+    private long searchThreshold;
+    @Value("${es.slowlog.threshold.bulk:2000}")
+    private long bulkThreshold;
+    @Value("${es.slowlog.threshold.mget:500}")
+    private long mgetThreshold;
+    /**
+     * 超过阈值的操作的记录比例(0-1)
+     */
+    @Value("${es.slowlog.sampleRate:1.0}")
+    private double sampleRate;
+    /**
+     * 每秒最多记录的条数
+     */
+    @Value("${es.slowlog.maxPerSecond:10}")
+    private int maxPerSecond;
+    /**
+     * 保留的最近记录数
+     */
+    @Value("${es.slowlog.capacity:200}")
+    private int capacity;
+    /**
+     * 查询语句的最大长度，超出部分截断
+     */
+    @Value("${es.slowlog.maxSourceLength:4096}")
+    private int maxSourceLength;
+
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger countInSecond = new AtomicInteger();
+
+    private final Deque<SlowLogEntry> recent = new ArrayDeque<>();
+    // 保护recent，不用synchronized，避免在虚拟线程上占住载体线程
+    private final ReentrantLock recentLock = new ReentrantLock();
+
+    /**
+     * 记录查询
+     * @param request
+     * @param response 失败时为null
+     * @param error 异常，成功时为null
+     * @param wallTime 客户端耗时(毫秒)
+     */
+    public void search(SearchRequest request, SearchResponse response, Exception error, long wallTime) {
+        if (!shouldLog(searchThreshold, wallTime)) {
+            return;
+        }
+        SlowLogEntry entry = newEntry(SEARCH, String.join(",", request.indices()), wallTime, error);
+        entry.setSource(truncate(Objects.isNull(request.source()) ? "" : Strings.toString(request.source())));
+        appendSearch(entry, response);
+    }
+
+    /**
+     * 记录模板查询
+     * @param request
+     * @param response 失败时为null
+     * @param error 异常，成功时为null
+     * @param wallTime 客户端耗时(毫秒)
+     */
+    public void searchTemplate(SearchTemplateRequest request, SearchResponse response, Exception error, long wallTime) {
+        if (!shouldLog(searchThreshold, wallTime)) {
+            return;
+        }
+        SlowLogEntry entry = newEntry(SEARCH, String.join(",", request.getRequest().indices()), wallTime, error);
+        entry.setSource(truncate(request.getScriptType() + " template=" + request.getScript() + ", params=" + request.getScriptParams()));
+        appendSearch(entry, response);
+    }
+
+    private void appendSearch(SlowLogEntry entry, SearchResponse response) {
+        if (Objects.isNull(response)) {
+            append(entry);
+            return;
+        }
+        entry.setTook(response.getTook().millis());
+        if (Objects.nonNull(response.getHits().getTotalHits())) {
+            entry.setTotalHits(response.getHits().getTotalHits().value);
+        }
+        entry.setTotalShards(response.getTotalShards());
+        entry.setSuccessfulShards(response.getSuccessfulShards());
+        entry.setFailedShards(response.getFailedShards());
+        append(entry);
+    }
+
+    /**
+     * 记录批量操作
+     * @param request
+     * @param response 失败时为null
+     * @param error 异常，成功时为null
+     * @param wallTime 客户端耗时(毫秒)
+     */
+    public void bulk(BulkRequest request, BulkResponse response, Exception error, long wallTime) {
+        if (!shouldLog(bulkThreshold, wallTime)) {
+            return;
+        }
+        Set<String> indices = new LinkedHashSet<>();
+        Map<DocWriteRequest.OpType, Integer> ops = new EnumMap<>(DocWriteRequest.OpType.class);
+        for (DocWriteRequest<?> docRequest : request.requests()) {
+            indices.add(docRequest.index());
+            ops.merge(docRequest.opType(), 1, Integer::sum);
+        }
+        int failed = 0;
+        if (Objects.nonNull(response)) {
+            for (int i = 0; i < response.getItems().length; i++) {
+                if (response.getItems()[i].isFailed()) {
+                    failed++;
+                }
+            }
+        }
+        SlowLogEntry entry = newEntry(BULK, String.join(",", indices), wallTime, error);
+        entry.setSource("actions=" + request.numberOfActions() + ", bytes=" + request.estimatedSizeInBytes()
+                + ", ops=" + ops + ", failed=" + (Objects.isNull(response) ? request.numberOfActions() : failed));
+        if (Objects.nonNull(response)) {
+            entry.setTook(response.getTook().millis());
+        }
+        entry.setTotalHits(request.numberOfActions());
+        append(entry);
+    }
+
+    /**
+     * 记录批量查找
+     * @param request
+     * @param response 失败时为null
+     * @param error 异常，成功时为null
+     * @param wallTime 客户端耗时(毫秒)
+     */
+    public void mget(MultiGetRequest request, MultiGetResponse response, Exception error, long wallTime) {
+        if (!shouldLog(mgetThreshold, wallTime)) {
+            return;
+        }
+        Set<String> indices = new LinkedHashSet<>();
+        for (MultiGetRequest.Item item : request.getItems()) {
+            indices.add(item.index());
+        }
+        SlowLogEntry entry = newEntry(MGET, String.join(",", indices), wallTime, error);
+        entry.setSource("docs=" + request.getItems().size());
+        entry.setTook(wallTime);
+        if (Objects.nonNull(response)) {
+            entry.setTotalHits(response.getResponses().length);
+        }
+        append(entry);
+    }
+
+    /**
+     * 最近的慢操作记录，按时间倒序
+     * @param operation 操作类型，为空则返回全部类型
+     * @param limit 最大条数
+     * @return
+     */
+    public List<SlowLogEntry> recent(String operation, int limit) {
+        List<SlowLogEntry> list = new ArrayList<>();
+        recentLock.lock();
+        try {
+            Iterator<SlowLogEntry> iterator = recent.descendingIterator();
+            while (iterator.hasNext() && list.size() < limit) {
+                SlowLogEntry entry = iterator.next();
+                if (Objects.isNull(operation) || operation.equals(entry.getOperation())) {
+                    list.add(entry);
+                }
+            }
+        } finally {
+            recentLock.unlock();
+        }
+        return list;
+    }
+
+    private boolean shouldLog(long threshold, long wallTime) {
+        if (!enabled || threshold < 0 || wallTime < threshold) {
+            return false;
+        }
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return false;
+        }
+        long second = System.currentTimeMillis() / 1000L;
+        long current = currentSecond.get();
+        if (second != current && currentSecond.compareAndSet(current, second)) {
+            countInSecond.set(0);
+        }
+        return countInSecond.incrementAndGet() <= maxPerSecond;
+    }
+
+    private SlowLogEntry newEntry(String operation, String index, long wallTime, Exception error) {
+        SlowLogEntry entry = new SlowLogEntry();
+        entry.setTimestamp(System.currentTimeMillis());
+        entry.setOperation(operation);
+        entry.setIndex(index);
+        entry.setWallTime(wallTime);
+        entry.setEndpoint(currentEndpoint());
+        if (Objects.nonNull(error)) {
+            entry.setError(truncate(error.toString()));
+        }
+        return entry;
+    }
+
+    private void append(SlowLogEntry entry) {
+        LOGGER.warn("es慢操作: operation={}, index={}, took={}ms, wallTime={}ms, totalHits={}, shards={}/{}/{}, endpoint={}, error={}, source={}",
+                entry.getOperation(), entry.getIndex(), entry.getTook(), entry.getWallTime(), entry.getTotalHits(),
+                entry.getSuccessfulShards(), entry.getFailedShards(), entry.getTotalShards(), entry.getEndpoint(), entry.getError(),
+                entry.getSource());
+        recentLock.lock();
+        try {
+            recent.addLast(entry);
+            while (recent.size() > capacity) {
+                recent.pollFirst();
+            }
+        } finally {
+            recentLock.unlock();
+        }
+    }
+
+    private String truncate(String source) {
+        return source.length() <= maxSourceLength ? source : source.substring(0, maxSourceLength) + "...";
+    }
+
+    private static String currentEndpoint() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes instanceof ServletRequestAttributes) {
+            return ((ServletRequestAttributes) attributes).getRequest().getRequestURI();
+        }
+        return null;
+    }
+}
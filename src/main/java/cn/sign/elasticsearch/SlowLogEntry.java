@@ -0,0 +1,49 @@
+package cn.sign.elasticsearch;
+
+import lombok.Data;
+
+/**
+ * 慢操作记录
+ */
+@Data
+public class SlowLogEntry {
+    /**
+     * 记录时间
+     */
+    private long timestamp;
+    /**
+     * 操作类型：search/bulk/mget
+     */
+    private String operation;
+    /**
+     * 索引
+     */
+    private String index;
+    /**
+     * 查询语句或批量操作摘要
+     */
+    private String source;
+    /**
+     * es返回的耗时(毫秒)
+     */
+    private long took;
+    /**
+     * 客户端耗时(毫秒)，包括序列化、网络和等待连接
+     */
+    private long wallTime;
+    /**
+     * 命中总数，批量操作为操作条数
+     */
+    private long totalHits;
+    private int totalShards;
+    private int successfulShards;
+    private int failedShards;
+    /**
+     * 调用的接口
+     */
+    private String endpoint;
+    /**
+     * 失败时的异常信息
+     */
+    private String error;
+}
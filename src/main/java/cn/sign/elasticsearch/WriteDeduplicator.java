@@ -0,0 +1,232 @@
+package cn.sign.elasticsearch;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 写入去重：记录每个文档(index + id + routing)最近一次写入成功的内容哈希，内容未变化的更新不再发送
+ * <p>
+ * 使用定长的long数组保存[文档哈希, 内容哈希]，槽位冲突时直接覆盖；另有每个槽位的[写入序号, 进行中的写入数]，内存占用固定为 容量 * 24 字节。
+ * 内容哈希与文档哈希混合后保存，并发读到新旧混杂的槽位时只会判定为已变化。
+ * <p>
+ * 响应返回的顺序不一定是es执行写入的顺序，所以每次写入发送前调用begin，结束后调用complete或abort：
+ * 写入期间同一槽位有其他写入开始过的不记录内容，槽位有写入进行中时不判定为未变化。
+ * 按查询批量修改的任务运行期间暂停去重，任务开始和结束时各清空一次
+ */
+@Component
+public class WriteDeduplicator {
+
+    private static final long KEY_SEED = 0x9E3779B97F4A7C15L;
+    private static final long BODY_SEED = 0xC2B2AE3D27D4EB4FL;
+    /**
+     * 槽位状态的高32位为写入序号，低32位为进行中的写入数
+     */
+    private static final long SEQ_UNIT = 1L << 32;
+    private static final long IN_FLIGHT_MASK = SEQ_UNIT - 1L;
+
+    @Value("${es.dedup.enabled:false}")
+    private boolean enabled;
+    @Value("${es.dedup.capacity:1048576}")
+    private int capacity;
+
+    private long[] table;
+    private AtomicLongArray states;
+    private int mask;
+    /**
+     * 运行中的按查询修改任务数，大于0时不去重
+     */
+    private final AtomicInteger suspended = new AtomicInteger();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        table = new long[size * 2];
+        states = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 文档哈希
+     * @param index
+     * @param id
+     * @param routing
+     * @return
+     */
+    public long key(String index, String id, String routing) {
+        String key = index + '\0' + id + '\0' + (routing == null ? "" : routing);
+        long hash = hash(key, KEY_SEED);
+        // 0表示空槽位
+        return hash == 0L ? 1L : hash;
+    }
+
+    /**
+     * 内容哈希
+     * @param json
+     * @return
+     */
+    public long body(String json) {
+        return hash(json, BODY_SEED);
+    }
+
+    /**
+     * 内容是否与最近一次写入成功的内容相同(槽位有写入进行中时视为已变化)
+     * @param key
+     * @param body
+     * @return
+     */
+    public boolean isUnchanged(long key, long body) {
+        if (!enabled || suspended.get() > 0) {
+            return false;
+        }
+        int slot = slot(key);
+        return (states.get(index(key)) & IN_FLIGHT_MASK) == 0L && table[slot] == key && table[slot + 1] == mix(key, body);
+    }
+
+    /**
+     * 写入发送前调用，结束后必须调用complete或abort
+     * @param key
+     * @return 写入凭证，开始时同一槽位已有写入进行中则为0(结束后不记录内容)
+     */
+    public long begin(long key) {
+        if (!enabled) {
+            return 0L;
+        }
+        long previous = states.getAndAdd(index(key), SEQ_UNIT + 1L);
+        clear(key);
+        return (previous & IN_FLIGHT_MASK) == 0L ? previous + SEQ_UNIT + 1L : 0L;
+    }
+
+    /**
+     * 开始一次不去重的写入(新增、删除、脚本更新等)，结束后必须调用abort
+     * @param index
+     * @param id
+     * @param routing
+     * @return 文档哈希，未开启时为0
+     */
+    public long begin(String index, String id, String routing) {
+        if (!enabled) {
+            return 0L;
+        }
+        long key = key(index, id, routing);
+        begin(key);
+        return key;
+    }
+
+    /**
+     * 写入成功：期间同一槽位没有其他写入开始过时记录内容，否则清除记录
+     * @param key
+     * @param ticket begin返回的写入凭证
+     * @param body
+     */
+    public void complete(long key, long ticket, long body) {
+        if (!enabled) {
+            return;
+        }
+        if (ticket != 0L && suspended.get() == 0) {
+            int slot = slot(key);
+            table[slot] = key;
+            table[slot + 1] = mix(key, body);
+            // 状态仍是begin时的值，说明期间没有其他写入开始，es上最后执行的就是本次写入
+            if (states.compareAndSet(index(key), ticket, ticket - 1L)) {
+                return;
+            }
+        }
+        abort(key);
+    }
+
+    /**
+     * 写入失败、结果未知、写入暂存区或不需要记录内容时结束写入并清除记录
+     * @param key
+     */
+    public void abort(long key) {
+        if (!enabled) {
+            return;
+        }
+        clear(key);
+        states.getAndUpdate(index(key), state -> (state & IN_FLIGHT_MASK) == 0L ? state : state - 1L);
+    }
+
+    /**
+     * 文档被其他方式修改时清除记录，进行中的写入结束后也不再记录内容
+     * @param key
+     */
+    public void forget(long key) {
+        if (!enabled) {
+            return;
+        }
+        states.getAndAdd(index(key), SEQ_UNIT);
+        clear(key);
+    }
+
+    public void forget(String index, String id, String routing) {
+        if (enabled) {
+            forget(key(index, id, routing));
+        }
+    }
+
+    /**
+     * 清除全部记录(按查询批量修改文档后使用)，进行中的写入结束后也不再记录内容
+     */
+    public void clear() {
+        if (enabled) {
+            Arrays.fill(table, 0L);
+            for (int i = 0; i < states.length(); i++) {
+                states.getAndAdd(i, SEQ_UNIT);
+            }
+        }
+    }
+
+    /**
+     * 按查询批量修改的任务开始：清空记录，任务结束前不再去重
+     */
+    public void suspend() {
+        suspended.incrementAndGet();
+        clear();
+    }
+
+    /**
+     * 按查询批量修改的任务结束：再次清空任务运行期间可能记录的内容
+     */
+    public void resume() {
+        suspended.updateAndGet(count -> Math.max(count - 1, 0));
+        clear();
+    }
+
+    private void clear(long key) {
+        int slot = slot(key);
+        if (table[slot] == key) {
+            table[slot + 1] = 0L;
+        }
+    }
+
+    private int index(long key) {
+        return (int) (key & mask);
+    }
+
+    private int slot(long key) {
+        return index(key) << 1;
+    }
+
+    private static long mix(long key, long body) {
+        return body ^ MurmurHash3.murmur64(key);
+    }
+
+    private static long hash(String value, long seed) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(bytes, 0, bytes.length, seed, new MurmurHash3.Hash128()).h1;
+    }
+}
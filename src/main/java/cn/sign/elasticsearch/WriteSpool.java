@@ -0,0 +1,495 @@
+package cn.sign.elasticsearch;
+
+import com.alibaba.fastjson.JSONObject;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * 写入暂存区：es不可用或拒绝写入时，将写操作以NDJSON追加到本地内存映射的分段文件中，
+ * 由后台线程在集群恢复后按批量回放，并记录回放检查点
+ * <p>
+ * 记录格式为[4字节长度][NDJSON操作]，长度为0表示分段结束；检查点文件记录[分段序号][分段内偏移]。
+ * 无法解析或被es拒绝(非不可用)的写操作追加到poison.ndjson后跳过，不阻塞检查点
+ */
+@Component
+public class WriteSpool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteSpool.class);
+
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String POISON = "poison.ndjson";
+    private static final String CLUSTER_BLOCK_EXCEPTION = "cluster_block_exception";
+    private static final int RECORD_HEADER = 4;
+
+    @Value("${es.spool.enabled:false}")
+    private boolean enabled;
+    @Value("${es.spool.dir:spool}")
+    private String dir;
+    @Value("${es.spool.segmentSize:67108864}")
+    private int segmentSize;
+    @Value("${es.spool.replayBatchBytes:5242880}")
+    private int replayBatchBytes;
+    @Value("${es.spool.replayIntervalMillis:1000}")
+    private long replayIntervalMillis;
+
+    @Autowired
+    private RestHighLevelClient client;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private ScheduledExecutorService replayer;
+    private Path spoolDir;
+
+    // 写入位置，受writeLock保护
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    // 已提交的写入位置[分段序号, 分段内偏移]，供回放线程读取
+    private volatile long[] writeMark = new long[]{0L, 0L};
+
+    // 回放位置[分段序号, 分段内偏移]，仅由回放线程修改，整体替换以保证一致
+    private volatile long[] readMark = new long[]{0L, 0L};
+    // 回放线程当前映射的分段，跨批复用
+    private long readBufferSegment = -1L;
+    private MappedByteBuffer readBuffer;
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        spoolDir = Paths.get(dir);
+        Files.createDirectories(spoolDir);
+        List<Long> segments = listSegments();
+        writeSegment = segments.isEmpty() ? 0L : segments.get(segments.size() - 1);
+        writeBuffer = mapSegment(writeSegment);
+        // 扫描到第一个空记录即为写入位置
+        int position = 0;
+        while (position + RECORD_HEADER <= segmentSize) {
+            int length = writeBuffer.getInt(position);
+            if (length <= 0) {
+                break;
+            }
+            position += RECORD_HEADER + length;
+        }
+        writeBuffer.position(position);
+        publishWritePosition();
+        readCheckpoint(segments);
+        for (Long segment : segments) {
+            // 已回放完但未来得及删除的分段
+            if (segment < readMark[0]) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+        }
+
+        replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "es-spool-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayer.scheduleWithFixedDelay(this::replay, replayIntervalMillis, replayIntervalMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("写入暂存区已开启！目录: {}, 待回放: {}", spoolDir.toAbsolutePath(), hasPending());
+    }
+
+    @PreDestroy
+    public void close() {
+        if (replayer != null) {
+            replayer.shutdownNow();
+        }
+        writeLock.lock();
+        try {
+            if (writeBuffer != null) {
+                writeBuffer.force();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 是否还有未回放的写操作(有则新的写操作也应进入暂存区，保证顺序)
+     * @return
+     */
+    public boolean hasPending() {
+        long[] mark = writeMark;
+        long[] read = readMark;
+        return enabled && (read[0] < mark[0] || (read[0] == mark[0] && read[1] < mark[1]));
+    }
+
+    /**
+     * 是否为集群不可用或拒绝写入的异常
+     * <p>
+     * 索引暂时禁止写入(如重建索引最后一轮补齐时)返回的403 cluster_block_exception同样视为不可用，写入暂存区稍后回放
+     * @param e
+     * @return
+     */
+    public static boolean isUnavailable(Exception e) {
+        if (e instanceof IOException) {
+            return true;
+        }
+        if (e instanceof ElasticsearchException) {
+            RestStatus status = ((ElasticsearchException) e).status();
+            return isUnavailable(status) || isWriteBlocked(status, e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * 批量操作中的单条失败是否为集群不可用或拒绝写入
+     * @param failure
+     * @return
+     */
+    public static boolean isUnavailable(BulkItemResponse.Failure failure) {
+        return isUnavailable(failure.getStatus()) || isWriteBlocked(failure.getStatus(), failure.getMessage());
+    }
+
+    public static boolean isUnavailable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE
+                || status == RestStatus.BAD_GATEWAY || status == RestStatus.GATEWAY_TIMEOUT;
+    }
+
+    private static boolean isWriteBlocked(RestStatus status, String message) {
+        return status == RestStatus.FORBIDDEN && Objects.nonNull(message) && message.contains(CLUSTER_BLOCK_EXCEPTION);
+    }
+
+    /**
+     * 追加写操作
+     * @param requests
+     * @return 是否已写入暂存区
+     */
+    public boolean append(List<? extends DocWriteRequest<?>> requests) {
+        if (!enabled || requests.isEmpty()) {
+            return false;
+        }
+        List<byte[]> records = new ArrayList<>(requests.size());
+        try {
+            for (DocWriteRequest<?> request : requests) {
+                byte[] record = toNdjson(request);
+                if (RECORD_HEADER + record.length > segmentSize) {
+                    LOGGER.error("\"index={}, id={}\"的写操作超过暂存分段大小！", request.index(), request.id());
+                    return false;
+                }
+                records.add(record);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.error("写操作序列化失败！", e);
+            return false;
+        }
+
+        writeLock.lock();
+        try {
+            for (byte[] record : records) {
+                if (writeBuffer.remaining() < RECORD_HEADER + record.length) {
+                    rotate();
+                }
+                int position = writeBuffer.position();
+                // 先写内容再写长度，长度非0即表示记录完整
+                writeBuffer.position(position + RECORD_HEADER);
+                writeBuffer.put(record);
+                // 记录之后始终保留结束标记，避免异常退出后残留的半条记录被误读
+                if (writeBuffer.remaining() >= RECORD_HEADER) {
+                    writeBuffer.putInt(writeBuffer.position(), 0);
+                }
+                writeBuffer.putInt(position, record.length);
+            }
+            writeBuffer.force();
+            publishWritePosition();
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("写入暂存区失败！", e);
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean append(DocWriteRequest<?> request) {
+        List<DocWriteRequest<?>> requests = new ArrayList<>(1);
+        requests.add(request);
+        return append(requests);
+    }
+
+    private void rotate() throws IOException {
+        writeBuffer.force();
+        writeSegment++;
+        writeBuffer = mapSegment(writeSegment);
+        writeBuffer.position(0);
+        LOGGER.info("暂存区切换分段！segment: {}", writeSegment);
+    }
+
+    private void publishWritePosition() {
+        writeMark = new long[]{writeSegment, writeBuffer.position()};
+    }
+
+    /**
+     * 回放一批暂存的写操作，成功后推进检查点，读完的分段删除，由open定时执行
+     */
+    void replay() {
+        try {
+            while (hasPending()) {
+                long[] read = readMark;
+                long segment = read[0];
+                long[] mark = writeMark;
+                long lastSegment = mark[0];
+                int limit = segment == lastSegment ? (int) mark[1] : segmentSize;
+
+                ByteBuffer buffer = readBuffer(segment);
+                List<byte[]> batch = new ArrayList<>();
+                int batchBytes = 0;
+                int position = (int) read[1];
+                while (position + RECORD_HEADER <= limit && batchBytes < replayBatchBytes) {
+                    int length = buffer.getInt(position);
+                    if (length <= 0) {
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    buffer.position(position + RECORD_HEADER);
+                    buffer.get(record);
+                    batch.add(record);
+                    batchBytes += length;
+                    position += RECORD_HEADER + length;
+                }
+
+                if (!batch.isEmpty() && !sendBatch(batch)) {
+                    // 集群仍不可用，等待下次回放
+                    return;
+                }
+                boolean segmentDone = segment < lastSegment && (position + RECORD_HEADER > segmentSize || buffer.getInt(position) <= 0);
+                if (segmentDone) {
+                    writeCheckpoint(segment + 1, 0);
+                    readBuffer = null;
+                    readBufferSegment = -1L;
+                    Files.deleteIfExists(segmentPath(segment));
+                } else {
+                    writeCheckpoint(segment, position);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("暂存区回放异常！", e);
+        }
+    }
+
+    /**
+     * 发送一批写操作，每条为一个写操作的NDJSON
+     * @param records
+     * @return 是否可以推进检查点
+     */
+    private boolean sendBatch(List<byte[]> records) throws IOException {
+        BulkRequest bulkRequest = new BulkRequest();
+        List<byte[]> sent = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            try {
+                bulkRequest.add(record, 0, record.length, XContentType.JSON);
+                sent.add(record);
+            } catch (IOException | RuntimeException e) {
+                quarantine(record, e.toString());
+            }
+        }
+        if (sent.isEmpty()) {
+            return true;
+        }
+        bulkRequest.timeout(TimeValue.timeValueMinutes(2L));
+        BulkResponse response;
+        try {
+            response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+        } catch (IOException | ElasticsearchException e) {
+            if (isUnavailable(e)) {
+                return false;
+            }
+            if (sent.size() == 1) {
+                quarantine(sent.get(0), e.toString());
+                return true;
+            }
+            // 整批被拒绝(如400)时逐条重发，只移走有问题的写操作
+            LOGGER.error("暂存区回放被拒绝，逐条重发！", e);
+            for (byte[] record : sent) {
+                if (!sendBatch(Collections.singletonList(record))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        int failed = 0;
+        for (BulkItemResponse item : response) {
+            if (!item.isFailed()) {
+                continue;
+            }
+            RestStatus status = item.getFailure().getStatus();
+            if (isUnavailable(item.getFailure())) {
+                // 整批重放，已成功的create会返回409并被忽略
+                return false;
+            }
+            if (status != RestStatus.CONFLICT || item.getOpType() != DocWriteRequest.OpType.CREATE) {
+                failed++;
+                LOGGER.error("\"index={}, id={}\"的暂存写操作回放失败！{}", item.getIndex(), item.getId(), item.getFailureMessage());
+                quarantine(sent.get(item.getItemId()), item.getFailureMessage());
+            }
+        }
+        LOGGER.info("暂存区回放{}条写操作，失败{}条，耗时{}", bulkRequest.numberOfActions(), failed, response.getTook());
+        return true;
+    }
+
+    /**
+     * 无法回放的写操作追加到poison.ndjson，供人工处理
+     * @param record
+     * @param reason
+     * @throws IOException
+     */
+    private void quarantine(byte[] record, String reason) throws IOException {
+        Files.write(spoolDir.resolve(POISON), record, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        LOGGER.error("暂存写操作无法回放，已移至{}！原因: {}", POISON, reason);
+    }
+
+    /**
+     * 将写操作转为bulk的NDJSON格式
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    static byte[] toNdjson(DocWriteRequest<?> request) throws IOException {
+        JSONObject meta = new JSONObject(true);
+        meta.put("_index", request.index());
+        meta.put("_id", request.id());
+        if (request.routing() != null) {
+            meta.put("routing", request.routing());
+        }
+        JSONObject action = new JSONObject(true);
+        action.put(request.opType().getLowercase(), meta);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(action.toJSONString().getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+        switch (request.opType()) {
+            case INDEX:
+            case CREATE:
+                writeLine(out, BytesReference.toBytes(((IndexRequest) request).source()));
+                break;
+            case UPDATE:
+                UpdateRequest update = (UpdateRequest) request;
+                if (update.doc() == null) {
+                    throw new IllegalArgumentException("只支持文档更新写入暂存区");
+                }
+                out.write("{\"doc\":".getBytes(StandardCharsets.UTF_8));
+                byte[] doc = BytesReference.toBytes(update.doc().source());
+                out.write(stripNewlines(doc));
+                out.write((",\"doc_as_upsert\":" + update.docAsUpsert() + "}\n").getBytes(StandardCharsets.UTF_8));
+                break;
+            default:
+                break;
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, byte[] json) throws IOException {
+        out.write(stripNewlines(json));
+        out.write('\n');
+    }
+
+    /**
+     * json中的换行只可能是空白，替换为空格以满足NDJSON
+     */
+    static byte[] stripNewlines(byte[] json) {
+        byte[] result = json;
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] == '\n' || result[i] == '\r') {
+                // toBytes可能直接返回请求内部的数组，修改前先复制
+                if (result == json) {
+                    result = json.clone();
+                }
+                result[i] = ' ';
+            }
+        }
+        return result;
+    }
+
+    private MappedByteBuffer readBuffer(long segment) throws IOException {
+        if (readBuffer == null || readBufferSegment != segment) {
+            readBuffer = mapSegment(segment);
+            readBufferSegment = segment;
+        }
+        return readBuffer;
+    }
+
+    private MappedByteBuffer mapSegment(long segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return spoolDir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(spoolDir)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .forEach(segments::add);
+        }
+        return segments;
+    }
+
+    private void readCheckpoint(List<Long> segments) throws IOException {
+        Path checkpoint = spoolDir.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+            readMark = new long[]{buffer.getLong(), buffer.getInt()};
+        } else {
+            readMark = new long[]{segments.isEmpty() ? 0L : segments.get(0), 0L};
+        }
+    }
+
+    private void writeCheckpoint(long segment, int offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putLong(segment).putInt(offset);
+        Path temp = spoolDir.resolve(CHECKPOINT + ".tmp");
+        Files.write(temp, buffer.array(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+        Files.move(temp, spoolDir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        readMark = new long[]{segment, offset};
+    }
+}
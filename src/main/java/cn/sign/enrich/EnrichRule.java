@@ -0,0 +1,36 @@
+package cn.sign.enrich;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 查询结果关联mysql表的规则
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class EnrichRule {
+    /**
+     * 文档中作为关联键的字段
+     */
+    private String hitField;
+    /**
+     * 关联的mysql表
+     */
+    private String table;
+    /**
+     * 表中与关联键对应的列
+     */
+    private String keyColumn;
+    /**
+     * 需要合并到文档的列，为空则取全部列
+     */
+    private List<String> columns;
+    /**
+     * 合并到文档的字段名，为空则直接合并到文档顶层
+     */
+    private String target;
+}
@@ -0,0 +1,188 @@
+package cn.sign.enrich;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.LinkedCaseInsensitiveMap;
+
+import javax.sql.DataSource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 查询结果关联mysql数据
+ * <p>
+ * 每页结果按规则收集关联键，每张表只执行一次IN(...)查询(超过batchSize时分批)，再把查到的列合并到对应文档，
+ * 避免逐条文档查询数据库。可选的短时缓存保存热点行
+ */
+@Component
+public class HitEnricher {
+
+    private static final Pattern IDENTIFIER = Pattern.compile("^[A-Za-z0-9_]+$");
+
+    @Value("${enrich.batchSize:1000}")
+    private int batchSize;
+    @Value("${enrich.cache.ttlMillis:0}")
+    private long cacheTtlMillis;
+    @Value("${enrich.cache.maxSize:10000}")
+    private int cacheMaxSize;
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     * 热点行缓存，行数据不可修改
+     */
+    private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+
+    public HitEnricher(DataSource dataSource) {
+        this.jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+    }
+
+    /**
+     * 按规则合并mysql数据到文档
+     * @param hits 一页查询结果(会被直接修改)
+     * @param rules 关联规则
+     * @return 合并后的查询结果
+     */
+    public List<Map<String, Object>> enrich(List<Map<String, Object>> hits, List<EnrichRule> rules) {
+        if (CollectionUtils.isEmpty(hits) || CollectionUtils.isEmpty(rules)) {
+            return hits;
+        }
+        for (EnrichRule rule : rules) {
+            Map<String, Map<String, Object>> rows = loadRows(rule, collectKeys(hits, rule));
+            for (Map<String, Object> hit : hits) {
+                Object key = hit.get(rule.getHitField());
+                Map<String, Object> row = Objects.isNull(key) ? null : rows.get(String.valueOf(key));
+                if (Objects.isNull(row)) {
+                    continue;
+                }
+                if (Objects.isNull(rule.getTarget())) {
+                    hit.putAll(row);
+                } else {
+                    // 同一行可能关联到多个文档或来自缓存，每个文档放一份副本
+                    hit.put(rule.getTarget(), copy(row));
+                }
+            }
+        }
+        return hits;
+    }
+
+    private Set<String> collectKeys(List<Map<String, Object>> hits, EnrichRule rule) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (Map<String, Object> hit : hits) {
+            Object key = hit.get(rule.getHitField());
+            if (Objects.nonNull(key)) {
+                keys.add(String.valueOf(key));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 查询关联行，优先从缓存获取
+     * @param rule
+     * @param keys
+     * @return key为关联键
+     */
+    private Map<String, Map<String, Object>> loadRows(EnrichRule rule, Set<String> keys) {
+        Map<String, Map<String, Object>> result = new HashMap<>();
+        if (keys.isEmpty()) {
+            return result;
+        }
+        String columns = selectColumns(rule);
+        String cachePrefix = rule.getTable() + '\0' + rule.getKeyColumn() + '\0' + columns + '\0';
+        long now = System.currentTimeMillis();
+
+        List<String> missing = new ArrayList<>();
+        for (String key : keys) {
+            Map<String, Object> row = cacheTtlMillis > 0 ? getCached(cachePrefix + key, now) : null;
+            if (Objects.nonNull(row)) {
+                result.put(key, row);
+            } else {
+                missing.add(key);
+            }
+        }
+
+        String sql = "SELECT " + columns + " FROM " + rule.getTable() + " WHERE " + rule.getKeyColumn() + " IN (:keys)";
+        for (int from = 0; from < missing.size(); from += batchSize) {
+            List<String> batch = missing.subList(from, Math.min(from + batchSize, missing.size()));
+            List<Map<String, Object>> rows = jdbcTemplate.queryForList(sql, new MapSqlParameterSource("keys", batch));
+            for (Map<String, Object> row : rows) {
+                String key = String.valueOf(row.get(rule.getKeyColumn()));
+                result.put(key, row);
+                if (cacheTtlMillis > 0) {
+                    putCached(cachePrefix + key, row, now);
+                }
+            }
+        }
+        return result;
+    }
+
+    private String selectColumns(EnrichRule rule) {
+        checkIdentifier(rule.getTable());
+        checkIdentifier(rule.getKeyColumn());
+        if (CollectionUtils.isEmpty(rule.getColumns())) {
+            return "*";
+        }
+        StringBuilder columns = new StringBuilder(rule.getKeyColumn());
+        for (String column : rule.getColumns()) {
+            checkIdentifier(column);
+            if (!column.equalsIgnoreCase(rule.getKeyColumn())) {
+                columns.append(", ").append(column);
+            }
+        }
+        return columns.toString();
+    }
+
+    private Map<String, Object> getCached(String key, long now) {
+        CacheEntry entry = cache.get(key);
+        if (Objects.isNull(entry)) {
+            return null;
+        }
+        if (entry.expiresAt < now) {
+            cache.remove(key, entry);
+            return null;
+        }
+        return entry.row;
+    }
+
+    private void putCached(String key, Map<String, Object> row, long now) {
+        if (cache.size() >= cacheMaxSize) {
+            cache.values().removeIf(entry -> entry.expiresAt < now);
+            if (cache.size() >= cacheMaxSize) {
+                return;
+            }
+        }
+        cache.put(key, new CacheEntry(now + cacheTtlMillis, Collections.unmodifiableMap(copy(row))));
+    }
+
+    /**
+     * 复制行数据，与jdbc返回的行一样列名不区分大小写
+     * @param row
+     * @return
+     */
+    private static Map<String, Object> copy(Map<String, Object> row) {
+        Map<String, Object> copy = new LinkedCaseInsensitiveMap<>(row.size());
+        copy.putAll(row);
+        return copy;
+    }
+
+    private static void checkIdentifier(String name) {
+        if (Objects.isNull(name) || !IDENTIFIER.matcher(name).matches()) {
+            throw new IllegalArgumentException("非法的表名或列名: " + name);
+        }
+    }
+
+    private static final class CacheEntry {
+        private final long expiresAt;
+        private final Map<String, Object> row;
+
+        private CacheEntry(long expiresAt, Map<String, Object> row) {
+            this.expiresAt = expiresAt;
+            this.row = row;
+        }
+    }
+}
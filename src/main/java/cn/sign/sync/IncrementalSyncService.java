@@ -0,0 +1,306 @@
+package cn.sign.sync;
+
+import cn.sign.elasticsearch.BulkResult;
+import cn.sign.elasticsearch.ElasticClient;
+import com.alibaba.fastjson.JSON;
+import org.elasticsearch.action.support.WriteRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+/**
+ * mysql增量同步到es
+ * <p>
+ * 按(水位列, 主键)做keyset分页读取水位之后变化的行，转为文档后通过bulkUpdate批量写入es(不等待刷新)，
+ * 逻辑删除的行通过bulkDelete删除。多个批次并行写入，水位按批次顺序推进并按原类型(时间/整数/文本)
+ * 保存在es_sync_watermark表中，重启后从上次的水位继续。时间类型的水位只读到当前时间减lagMillis，
+ * 避免提交较晚的事务的行落在已推进的水位之前而被漏掉。水位列为NULL的行无法定位，不参与同步
+ */
+@Service
+public class IncrementalSyncService implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IncrementalSyncService.class);
+
+    private static final Pattern IDENTIFIER = Pattern.compile("^[A-Za-z0-9_]+$");
+    private static final String WATERMARK_TABLE = "es_sync_watermark";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ElasticClient elasticClient;
+    private final SyncProperties properties;
+
+    /**
+     * 水位列是否为时间类型，key为表名
+     */
+    private final Map<String, Boolean> temporalWatermarks = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService writers;
+
+    public IncrementalSyncService(DataSource dataSource, ElasticClient elasticClient, SyncProperties properties) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.elasticClient = elasticClient;
+        this.properties = properties;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        createWatermarkTable();
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemon("es-sync"));
+        scheduler.scheduleWithFixedDelay(this::syncAll, properties.getIntervalMillis(), properties.getIntervalMillis(), TimeUnit.MILLISECONDS);
+        LOGGER.info("mysql增量同步已开启！表数量: {}", properties.getTables().size());
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (writers != null) {
+            writers.shutdownNow();
+        }
+    }
+
+    /**
+     * 同步全部配置的表
+     */
+    public void syncAll() {
+        for (SyncProperties.Table table : properties.getTables()) {
+            try {
+                long rows = syncTable(table);
+                if (rows > 0) {
+                    LOGGER.info("\"table={}\"同步完成！同步行数: {}", table.getTable(), rows);
+                }
+            } catch (Exception e) {
+                LOGGER.error("\"table={}\"同步失败！", table.getTable(), e);
+            }
+        }
+    }
+
+    /**
+     * 同步一张表水位之后变化的行
+     * @param table
+     * @return 同步的行数
+     * @throws Exception 写入失败时抛出，水位停留在最后一个连续成功的批次
+     */
+    public long syncTable(SyncProperties.Table table) throws Exception {
+        checkIdentifier(table.getTable());
+        checkIdentifier(table.getIdColumn());
+        checkIdentifier(table.getWatermarkColumn());
+        if (Objects.nonNull(table.getDeletedColumn())) {
+            checkIdentifier(table.getDeletedColumn());
+        }
+        String key = table.getTable() + ":" + table.getIndex();
+        Object[] mark = loadWatermark(key);
+        if (Objects.nonNull(mark) && Objects.isNull(mark[0])) {
+            // 早期版本可能保存了NULL水位，之后的行都无法比较，从头重新同步(upsert可重复执行)
+            LOGGER.error("\"key={}\"的同步水位为NULL，从头重新同步！", key);
+            mark = null;
+        }
+
+        String watermarkColumn = table.getWatermarkColumn();
+        // 水位列为NULL的行排在最前且无法与水位比较，排除后最后一行的水位一定非NULL
+        String select = "SELECT * FROM " + table.getTable() + " WHERE " + watermarkColumn + " IS NOT NULL";
+        String order = " ORDER BY " + watermarkColumn + ", " + table.getIdColumn() + " LIMIT " + table.getBatchSize();
+        String after = " AND (" + watermarkColumn + " > ? OR (" + watermarkColumn + " = ? AND " + table.getIdColumn() + " > ?))";
+        // 本轮只读到这个时间之前的行，未到的行留给下一轮
+        Timestamp upperBound = table.getLagMillis() > 0 && isTemporalWatermark(table)
+                ? new Timestamp(System.currentTimeMillis() - table.getLagMillis()) : null;
+        String upper = " AND " + watermarkColumn + " <= ?";
+
+        Deque<Future<Void>> inFlight = new ArrayDeque<>();
+        Deque<Object[]> marks = new ArrayDeque<>();
+        long total = 0L;
+        try {
+            while (true) {
+                List<Object> args = new ArrayList<>(4);
+                StringBuilder sql = new StringBuilder(select);
+                if (Objects.nonNull(mark)) {
+                    sql.append(after);
+                    Collections.addAll(args, mark[0], mark[0], mark[1]);
+                }
+                if (Objects.nonNull(upperBound)) {
+                    sql.append(upper);
+                    args.add(upperBound);
+                }
+                List<Map<String, Object>> rows = jdbcTemplate.queryForList(sql.append(order).toString(), args.toArray());
+                if (rows.isEmpty()) {
+                    break;
+                }
+                Map<String, Object> last = rows.get(rows.size() - 1);
+                mark = new Object[]{last.get(watermarkColumn), last.get(table.getIdColumn())};
+                List<Map<String, String>> upserts = new ArrayList<>(rows.size());
+                List<Map<String, String>> deletes = new ArrayList<>();
+                for (Map<String, Object> row : rows) {
+                    if (Objects.nonNull(table.getDeletedColumn()) && isDeleted(row.get(table.getDeletedColumn()))) {
+                        deletes.add(toDocument(table, row, false));
+                    } else {
+                        upserts.add(toDocument(table, row, true));
+                    }
+                }
+                inFlight.add(writers().submit(() -> writeBatch(table, upserts, deletes)));
+                marks.add(mark);
+                total += rows.size();
+
+                // 按批次顺序推进水位，同时写入的批次数不超过parallelism
+                while (!inFlight.isEmpty() && (inFlight.peek().isDone() || inFlight.size() >= Math.max(table.getParallelism(), 1))) {
+                    inFlight.poll().get();
+                    saveWatermark(key, marks.poll());
+                }
+                if (rows.size() < table.getBatchSize()) {
+                    break;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                inFlight.poll().get();
+                saveWatermark(key, marks.poll());
+            }
+        } finally {
+            // 失败时未确认的批次下次会从水位处重新同步(upsert可重复执行)
+            for (Future<Void> future : inFlight) {
+                future.cancel(false);
+            }
+        }
+        return total;
+    }
+
+    private Void writeBatch(SyncProperties.Table table, List<Map<String, String>> upserts, List<Map<String, String>> deletes)
+            throws Exception {
+        // 同步写入不需要立即可查，不等待刷新
+        int failed = 0;
+        if (!upserts.isEmpty()) {
+            failed += elasticClient.bulkUpdate(upserts, WriteRequest.RefreshPolicy.NONE).getFailed();
+        }
+        if (!deletes.isEmpty()) {
+            failed += elasticClient.bulkDelete(deletes, WriteRequest.RefreshPolicy.NONE).getFailed();
+        }
+        if (failed > 0) {
+            throw new IllegalStateException("\"index=" + table.getIndex() + "\"有" + failed + "个文档写入失败");
+        }
+        return null;
+    }
+
+    private static Map<String, String> toDocument(SyncProperties.Table table, Map<String, Object> row, boolean withSource) {
+        Map<String, String> doc = new HashMap<>();
+        doc.put("index", table.getIndex());
+        doc.put("id", String.valueOf(row.get(table.getIdColumn())));
+        if (withSource) {
+            doc.put("json", JSON.toJSONString(row));
+        }
+        return doc;
+    }
+
+    private static boolean isDeleted(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue() != 0;
+        }
+        return Objects.nonNull(value) && ("1".equals(value.toString()) || "true".equalsIgnoreCase(value.toString()));
+    }
+
+    private boolean isTemporalWatermark(SyncProperties.Table table) {
+        return temporalWatermarks.computeIfAbsent(table.getTable(), name -> jdbcTemplate.query(
+                "SELECT " + table.getWatermarkColumn() + " FROM " + name + " WHERE 1 = 0",
+                (ResultSetExtractor<Boolean>) rs -> {
+                    int type = rs.getMetaData().getColumnType(1);
+                    return type == Types.TIMESTAMP || type == Types.DATE || type == Types.TIMESTAMP_WITH_TIMEZONE;
+                }));
+    }
+
+    /**
+     * 水位和最后一行的主键按类型分别存放：时间存watermark_time，整数存*_number，其他存*_text
+     */
+    private void createWatermarkTable() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + WATERMARK_TABLE + " ("
+                + "sync_key VARCHAR(255) NOT NULL PRIMARY KEY, "
+                + "watermark_time TIMESTAMP(6) NULL, "
+                + "watermark_number BIGINT, "
+                + "watermark_text VARCHAR(255), "
+                + "last_id_number BIGINT, "
+                + "last_id_text VARCHAR(255))");
+    }
+
+    private Object[] loadWatermark(String key) {
+        List<Object[]> marks = jdbcTemplate.query("SELECT watermark_time, watermark_number, watermark_text, last_id_number, last_id_text FROM "
+                + WATERMARK_TABLE + " WHERE sync_key = ?", (rs, rowNum) -> {
+            Object watermark = rs.getTimestamp("watermark_time");
+            if (Objects.isNull(watermark)) {
+                watermark = numberOrText(rs.getObject("watermark_number"), rs.getString("watermark_text"));
+            }
+            return new Object[]{watermark, numberOrText(rs.getObject("last_id_number"), rs.getString("last_id_text"))};
+        }, key);
+        return marks.isEmpty() ? null : marks.get(0);
+    }
+
+    private void saveWatermark(String key, Object[] mark) {
+        Object watermark = mark[0];
+        Object[] args = new Object[]{
+                watermark instanceof Date ? new Timestamp(((Date) watermark).getTime()) : null,
+                isInteger(watermark) ? ((Number) watermark).longValue() : null,
+                watermark instanceof Date || isInteger(watermark) || Objects.isNull(watermark) ? null : watermark.toString(),
+                isInteger(mark[1]) ? ((Number) mark[1]).longValue() : null,
+                isInteger(mark[1]) || Objects.isNull(mark[1]) ? null : mark[1].toString(),
+                key};
+        if (watermark instanceof Timestamp) {
+            // 保留纳秒部分
+            args[0] = watermark;
+        }
+        int[] types = new int[]{Types.TIMESTAMP, Types.BIGINT, Types.VARCHAR, Types.BIGINT, Types.VARCHAR, Types.VARCHAR};
+        int updated = jdbcTemplate.update("UPDATE " + WATERMARK_TABLE + " SET watermark_time = ?, watermark_number = ?, "
+                + "watermark_text = ?, last_id_number = ?, last_id_text = ? WHERE sync_key = ?", args, types);
+        if (updated == 0) {
+            jdbcTemplate.update("INSERT INTO " + WATERMARK_TABLE + " (watermark_time, watermark_number, watermark_text, "
+                    + "last_id_number, last_id_text, sync_key) VALUES (?, ?, ?, ?, ?, ?)", args, types);
+        }
+    }
+
+    private static boolean isInteger(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64);
+    }
+
+    private static Object numberOrText(Object number, String text) {
+        return Objects.nonNull(number) ? ((Number) number).longValue() : text;
+    }
+
+    private ExecutorService writers() {
+        if (writers == null) {
+            int threads = 0;
+            for (SyncProperties.Table table : properties.getTables()) {
+                threads += Math.max(table.getParallelism(), 1);
+            }
+            writers = Executors.newFixedThreadPool(Math.max(threads, 1), daemon("es-sync-writer"));
+        }
+        return writers;
+    }
+
+    private static void checkIdentifier(String name) {
+        if (Objects.isNull(name) || !IDENTIFIER.matcher(name).matches()) {
+            throw new IllegalArgumentException("非法的表名或列名: " + name);
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
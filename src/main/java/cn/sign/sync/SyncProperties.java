@@ -0,0 +1,67 @@
+package cn.sign.sync;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * mysql增量同步到es的配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "sync")
+public class SyncProperties {
+    /**
+     * 是否开启同步
+     */
+    private boolean enabled = false;
+    /**
+     * 两次同步的间隔(毫秒)
+     */
+    private long intervalMillis = 60000L;
+    /**
+     * 同步的表
+     */
+    private List<Table> tables = new ArrayList<>();
+
+    @Data
+    public static class Table {
+        /**
+         * mysql表名
+         */
+        private String table;
+        /**
+         * es索引名
+         */
+        private String index;
+        /**
+         * 主键列，作为文档id
+         */
+        private String idColumn = "id";
+        /**
+         * 水位列(如更新时间)，只同步水位之后变化的行
+         */
+        private String watermarkColumn = "update_time";
+        /**
+         * 每批读取的行数
+         */
+        private int batchSize = 1000;
+        /**
+         * 同时写入es的批次数
+         */
+        private int parallelism = 2;
+        /**
+         * 只同步水位早于当前时间lagMillis毫秒的行，给提交较晚(水位已被越过)的事务留出时间。
+         * 只对时间类型的水位列生效，应大于事务的最长持续时间加上应用与数据库的时钟偏差，0为不等待
+         */
+        private long lagMillis = 5000L;
+        /**
+         * 逻辑删除列，值为1/true的行从es删除，为空则不同步删除。
+         * 物理删除无法通过水位发现，需改为逻辑删除，或由触发器写入删除记录表后把该表也配置为同步表
+         */
+        private String deletedColumn;
+    }
+}
@@ -0,0 +1,58 @@
+package cn.sign.warmup;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 启动预热的配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "warmup")
+public class WarmupProperties {
+    /**
+     * 是否开启预热，关闭时启动后直接就绪
+     */
+    private boolean enabled = false;
+    /**
+     * 预热的最长时间(毫秒)，超时后不再等待预热完成直接就绪
+     */
+    private long budgetMillis = 60000L;
+    /**
+     * 每个节点预先建立的连接数
+     */
+    private int connectionsPerNode = 2;
+    /**
+     * 预热查询和查找的执行轮数，多轮执行使相关代码被JIT编译
+     */
+    private int rounds = 20;
+    /**
+     * 预热查询
+     */
+    private List<Query> queries = new ArrayList<>();
+    /**
+     * 预热查找
+     */
+    private List<Get> gets = new ArrayList<>();
+
+    @Data
+    public static class Query {
+        private String index;
+        /**
+         * query部分的json，为空则为match_all
+         */
+        private String query;
+        private int size = 10;
+    }
+
+    @Data
+    public static class Get {
+        private String index;
+        private String id;
+        private String routing;
+    }
+}
@@ -0,0 +1,208 @@
+package cn.sign.warmup;
+
+import cn.sign.config.WebConfig;
+import cn.sign.elasticsearch.ClusterRouter;
+import cn.sign.elasticsearch.ElasticClient;
+import cn.sign.elasticsearch.EsRestClient;
+import cn.sign.elasticsearch.PinnedNodeSelector;
+import cn.sign.utils.ResultMap;
+import com.alibaba.fastjson.support.spring.FastJsonHttpMessageConverter;
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 启动预热
+ * <p>
+ * 应用启动后在后台依次：向每个节点预先建立连接，多轮执行配置的查询和查找并按接口的方式渲染结果
+ * (预热es的缓存和客户端查询、解析、fastjson序列化的代码路径)。预热完成或超过budgetMillis后才就绪，
+ * 负载均衡通过/es/ready判断是否可以转发流量。预热结束后关闭预热线程
+ */
+@Service
+public class WarmupService implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WarmupService.class);
+
+    private final ElasticClient elasticClient;
+    private final ClusterRouter clusterRouter;
+    private final WarmupProperties properties;
+
+    private volatile boolean ready;
+    private ScheduledThreadPoolExecutor executor;
+
+    public WarmupService(ElasticClient elasticClient, ClusterRouter clusterRouter, WarmupProperties properties) {
+        this.elasticClient = elasticClient;
+        this.clusterRouter = clusterRouter;
+        this.properties = properties;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!properties.isEnabled()) {
+            ready = true;
+            return;
+        }
+        executor = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread thread = new Thread(r, "es-warmup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 预热提前完成时不再等待超时检查
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        long deadline = System.currentTimeMillis() + properties.getBudgetMillis();
+        executor.execute(() -> warmup(deadline));
+        executor.schedule(() -> {
+            if (!ready) {
+                ready = true;
+                LOGGER.error("预热超过{}毫秒未完成，已就绪！", properties.getBudgetMillis());
+            }
+        }, properties.getBudgetMillis(), TimeUnit.MILLISECONDS);
+        LOGGER.info("开始预热！");
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    private void warmup(long deadline) {
+        try {
+            doWarmup(deadline);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void doWarmup(long deadline) {
+        long start = System.currentTimeMillis();
+        try {
+            openConnections(deadline);
+            FastJsonHttpMessageConverter converter = WebConfig.messageConverter();
+            for (int round = 0; round < properties.getRounds() && System.currentTimeMillis() < deadline; round++) {
+                // 只在第一轮输出失败原因
+                boolean logFailure = round == 0;
+                for (WarmupProperties.Query query : properties.getQueries()) {
+                    try {
+                        QueryBuilder queryBuilder = StringUtils.isBlank(query.getQuery())
+                                ? QueryBuilders.matchAllQuery() : QueryBuilders.wrapperQuery(query.getQuery());
+                        render(converter, elasticClient.search(query.getIndex(), queryBuilder, null, 0, query.getSize()));
+                    } catch (IOException | RuntimeException e) {
+                        if (logFailure) {
+                            LOGGER.error("\"index={}\"的预热查询失败！", query.getIndex(), e);
+                        }
+                    }
+                }
+                for (WarmupProperties.Get get : properties.getGets()) {
+                    try {
+                        render(converter, elasticClient.getDocument(get.getIndex(), get.getId(), get.getRouting()));
+                    } catch (IOException | RuntimeException e) {
+                        if (logFailure) {
+                            LOGGER.error("\"index={}, id={}\"的预热查找失败！", get.getIndex(), get.getId(), e);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!ready) {
+            ready = true;
+            LOGGER.info("预热完成，已就绪！耗时{}毫秒", System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * 向每个节点发送connectionsPerNode个并发请求建立连接，请求通过PinnedNodeSelector固定到该节点
+     */
+    private void openConnections(long deadline) throws InterruptedException {
+        int perNode = Math.max(properties.getConnectionsPerNode(), 1);
+        for (EsRestClient client : clusterRouter.allClients()) {
+            List<Node> nodes = client.getLowLevelClient().getNodes();
+            int count = nodes.size() * perNode;
+            CountDownLatch latch = new CountDownLatch(count);
+            AtomicInteger failed = new AtomicInteger();
+            ResponseListener listener = new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    failed.incrementAndGet();
+                    latch.countDown();
+                }
+            };
+            for (Node node : nodes) {
+                for (int i = 0; i < perNode; i++) {
+                    try {
+                        PinnedNodeSelector.onNode(node.getHost(), () -> {
+                            client.getLowLevelClient().performRequestAsync(new Request("GET", "/"), listener);
+                            return null;
+                        });
+                    } catch (IOException e) {
+                        listener.onFailure(e);
+                    }
+                }
+            }
+            if (!latch.await(Math.max(deadline - System.currentTimeMillis(), 0L), TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            if (failed.get() > 0) {
+                LOGGER.error("预热连接{}个，失败{}个！", count, failed.get());
+            }
+        }
+    }
+
+    /**
+     * 按接口返回的方式渲染结果，丢弃输出
+     */
+    private static void render(FastJsonHttpMessageConverter converter, Object data) throws IOException {
+        HttpHeaders headers = new HttpHeaders();
+        converter.write(ResultMap.success().put("data", data), MediaType.APPLICATION_JSON_UTF8, new HttpOutputMessage() {
+            @Override
+            public OutputStream getBody() {
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int len) {
+                    }
+                };
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+        });
+    }
+}
@@ -0,0 +1,93 @@
+package cn.sign.config;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * 验证同步和异步(StreamingResponseBody)接口的许可在请求结束后都只释放一次，不会泄漏或多占
+ */
+public class EsConcurrencyLimiterTest {
+
+    private static final int MAX_CONCURRENT = 2;
+
+    private EsConcurrencyLimiter limiter;
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUp() {
+        limiter = new EsConcurrencyLimiter();
+        ReflectionTestUtils.setField(limiter, "maxConcurrent", MAX_CONCURRENT);
+        ReflectionTestUtils.setField(limiter, "acquireTimeoutMillis", 10L);
+        limiter.init();
+        mockMvc = MockMvcBuilders.standaloneSetup(new StubController()).addMappedInterceptors(new String[]{"/es/**"}, limiter).build();
+    }
+
+    @Test
+    public void syncRequestReleasesPermit() throws Exception {
+        mockMvc.perform(get("/es/sync")).andExpect(status().isOk());
+
+        assertThat(availablePermits()).isEqualTo(MAX_CONCURRENT);
+    }
+
+    @Test
+    public void asyncRequestHoldsPermitUntilAsyncDispatchCompletes() throws Exception {
+        for (int i = 0; i < MAX_CONCURRENT + 1; i++) {
+            MvcResult result = mockMvc.perform(get("/es/stream")).andExpect(request().asyncStarted()).andReturn();
+            // 异步处理期间许可保持占用
+            assertThat(availablePermits()).isEqualTo(MAX_CONCURRENT - 1);
+
+            mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk()).andExpect(content().string("stream"));
+            // ASYNC分发不再获取许可，结束后只释放一次
+            assertThat(availablePermits()).isEqualTo(MAX_CONCURRENT);
+        }
+    }
+
+    @Test
+    public void requestIsRejectedWhenPermitsAreHeldByAsyncRequests() throws Exception {
+        MvcResult first = mockMvc.perform(get("/es/stream")).andReturn();
+        MvcResult second = mockMvc.perform(get("/es/stream")).andReturn();
+
+        mockMvc.perform(get("/es/sync")).andExpect(status().isServiceUnavailable());
+
+        mockMvc.perform(asyncDispatch(first)).andExpect(status().isOk());
+        mockMvc.perform(asyncDispatch(second)).andExpect(status().isOk());
+        mockMvc.perform(get("/es/sync")).andExpect(status().isOk());
+        assertThat(availablePermits()).isEqualTo(MAX_CONCURRENT);
+    }
+
+    private int availablePermits() {
+        return ((Semaphore) ReflectionTestUtils.getField(limiter, "permits")).availablePermits();
+    }
+
+    @RestController
+    @RequestMapping("/es")
+    public static class StubController {
+
+        @RequestMapping("sync")
+        public String sync() {
+            return "sync";
+        }
+
+        @RequestMapping("stream")
+        public StreamingResponseBody stream() {
+            return out -> out.write("stream".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
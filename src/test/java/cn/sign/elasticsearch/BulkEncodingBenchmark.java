@@ -0,0 +1,80 @@
+package cn.sign.elasticsearch;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * bulk请求体各编码方式的传输字节数和编码CPU耗时(不需要es集群)
+ * <p>
+ * 与EsRestClient相同的编码路径：BulkEncoder编码为JSON或Smile，再按需gzip。
+ * 运行: java -cp target/test-classes:target/classes:... cn.sign.elasticsearch.BulkEncodingBenchmark [文档数] [轮数]
+ */
+public class BulkEncodingBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int docs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        BulkRequest bulkRequest = bulkRequest(docs);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.out.printf("文档数: %d, 轮数: %d, 原始请求估算大小: %d字节%n", docs, rounds, bulkRequest.estimatedSizeInBytes());
+        System.out.printf("%-12s %14s %12s %16s%n", "编码", "传输字节数", "压缩比", "CPU微秒/请求");
+        for (XContentType xContentType : new XContentType[]{XContentType.JSON, XContentType.SMILE}) {
+            for (boolean gzip : new boolean[]{false, true}) {
+                // 预热
+                for (int i = 0; i < rounds / 4 + 1; i++) {
+                    encode(bulkRequest, xContentType, gzip);
+                }
+                long bytes = 0L;
+                long cpuStart = threads.getCurrentThreadCpuTime();
+                for (int i = 0; i < rounds; i++) {
+                    bytes = encode(bulkRequest, xContentType, gzip);
+                }
+                long cpuMicros = (threads.getCurrentThreadCpuTime() - cpuStart) / 1000L / rounds;
+                System.out.printf("%-12s %14d %12.2f %16d%n", xContentType.name().toLowerCase(Locale.ROOT) + (gzip ? "+gzip" : ""),
+                        bytes, (double) bulkRequest.estimatedSizeInBytes() / bytes, cpuMicros);
+            }
+        }
+    }
+
+    private static long encode(BulkRequest bulkRequest, XContentType xContentType, boolean gzip) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) bulkRequest.estimatedSizeInBytes());
+        if (gzip) {
+            try (OutputStream out = new GZIPOutputStream(body, 8192)) {
+                BulkEncoder.encode(bulkRequest, xContentType, out);
+            }
+        } else {
+            BulkEncoder.encode(bulkRequest, xContentType, body);
+        }
+        return body.size();
+    }
+
+    /**
+     * 类似业务数据的文档：短字符串、数字、时间戳和一段较长的文本
+     */
+    private static BulkRequest bulkRequest(int docs) {
+        Random random = new Random(42L);
+        BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 0; i < docs; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 40; j++) {
+                text.append("word").append(random.nextInt(500)).append(' ');
+            }
+            String json = "{\"id\":" + i + ",\"name\":\"name" + i + "\",\"count\":" + random.nextInt(10000)
+                    + ",\"price\":" + random.nextDouble() * 1000 + ",\"update_time\":" + (1600000000000L + i * 1000L)
+                    + ",\"tags\":[\"tag" + random.nextInt(20) + "\",\"tag" + random.nextInt(20) + "\"],\"content\":\"" + text + "\"}";
+            bulkRequest.add(new IndexRequest("test_index").id(String.valueOf(i)).source(json, XContentType.JSON));
+        }
+        return bulkRequest;
+    }
+}
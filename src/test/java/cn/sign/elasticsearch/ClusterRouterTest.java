@@ -0,0 +1,199 @@
+package cn.sign.elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 使用两个本地HTTP服务分别模拟主集群和只读集群，验证查询路由、失败切回主集群和按延迟摘除只读集群
+ */
+public class ClusterRouterTest {
+
+    private static final String HEARTBEAT_INDEX = "es_heartbeat";
+    private static final long MAX_LAG_MILLIS = 5000L;
+    private static final Pattern TIMESTAMP = Pattern.compile("\"timestamp\":(\\d+)");
+
+    private StubCluster primaryCluster;
+    private StubCluster readCluster;
+    private ClusterRouter router;
+
+    @Before
+    public void setUp() throws IOException {
+        primaryCluster = new StubCluster(1L);
+        readCluster = new StubCluster(2L);
+        // 只读集群复制主集群写入的心跳
+        readCluster.replicateFrom = primaryCluster;
+        router = new ClusterRouter(primaryCluster.client(), Collections.singletonMap("read", readCluster.client()),
+                60000L, MAX_LAG_MILLIS, HEARTBEAT_INDEX);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        router.close();
+        router.primary().close();
+        primaryCluster.server.stop(0);
+        readCluster.server.stop(0);
+    }
+
+    @Test
+    public void searchGoesToPrimaryBeforeFirstHealthCheck() throws IOException {
+        assertThat(search()).isEqualTo(1L);
+        assertThat(readCluster.searches.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void searchGoesToHealthyReadCluster() throws IOException {
+        router.checkHealth();
+
+        assertThat(router.getStatus().get("read")).containsEntry("healthy", true).containsEntry("status", "GREEN");
+        assertThat(search()).isEqualTo(2L);
+        assertThat(primaryCluster.searches.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void unavailableReadClusterFailsOverToPrimary() throws IOException {
+        router.checkHealth();
+        readCluster.searchStatus = 503;
+
+        assertThat(search()).isEqualTo(1L);
+        assertThat(readCluster.searches.get()).isEqualTo(1);
+        assertThat(router.getStatus().get("read")).containsEntry("healthy", false);
+        // 摘除后不再发往只读集群
+        assertThat(search()).isEqualTo(1L);
+        assertThat(readCluster.searches.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void refusedConnectionFailsOverToPrimary() throws IOException {
+        router.checkHealth();
+        readCluster.server.stop(0);
+
+        assertThat(search()).isEqualTo(1L);
+        assertThat(router.getStatus().get("read")).containsEntry("healthy", false);
+    }
+
+    @Test
+    public void laggingReadClusterIsDemotedAndRestored() throws IOException {
+        router.checkHealth();
+        assertThat(search()).isEqualTo(2L);
+
+        // 复制停止，只读集群的心跳停留在一分钟前
+        readCluster.replicateFrom = null;
+        readCluster.heartbeat = System.currentTimeMillis() - 60000L;
+        router.checkHealth();
+
+        Map<String, Object> status = router.getStatus().get("read");
+        assertThat(status).containsEntry("healthy", false);
+        assertThat((Long) status.get("lagMillis")).isGreaterThan(MAX_LAG_MILLIS);
+        assertThat(search()).isEqualTo(1L);
+
+        readCluster.replicateFrom = primaryCluster;
+        router.checkHealth();
+
+        assertThat(router.getStatus().get("read")).containsEntry("healthy", true);
+        assertThat(search()).isEqualTo(2L);
+    }
+
+    /**
+     * 返回结果的总命中数，主集群为1，只读集群为2
+     */
+    private long search() throws IOException {
+        return router.read(client -> client.search(new SearchRequest("test_index"), RequestOptions.DEFAULT))
+                .getHits().getTotalHits().value;
+    }
+
+    private static class StubCluster {
+        private final HttpServer server;
+        private final long totalHits;
+        private final AtomicInteger searches = new AtomicInteger();
+        private volatile int searchStatus = 200;
+        private volatile Long heartbeat;
+        private volatile StubCluster replicateFrom;
+
+        private StubCluster(long totalHits) throws IOException {
+            this.totalHits = totalHits;
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this::handle);
+            server.start();
+        }
+
+        private EsRestClient client() {
+            return new EsRestClient(RestClient.builder(new HttpHost("127.0.0.1", server.getAddress().getPort())),
+                    false, 0, false, null);
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            if (path.startsWith("/_cluster/health")) {
+                respond(exchange, 200, "{\"cluster_name\":\"stub\",\"status\":\"green\",\"timed_out\":false,"
+                        + "\"number_of_nodes\":1,\"number_of_data_nodes\":1,\"active_primary_shards\":1,\"active_shards\":1,"
+                        + "\"relocating_shards\":0,\"initializing_shards\":0,\"unassigned_shards\":0,\"delayed_unassigned_shards\":0,"
+                        + "\"number_of_pending_tasks\":0,\"number_of_in_flight_fetch\":0,\"task_max_waiting_in_queue_millis\":0,"
+                        + "\"active_shards_percent_as_number\":100.0}");
+            } else if (path.startsWith("/" + HEARTBEAT_INDEX + "/_doc/heartbeat") && "GET".equals(exchange.getRequestMethod())) {
+                StubCluster source = replicateFrom;
+                Long timestamp = source != null ? source.heartbeat : heartbeat;
+                respond(exchange, timestamp == null ? 404 : 200, "{\"_index\":\"" + HEARTBEAT_INDEX + "\",\"_type\":\"_doc\","
+                        + "\"_id\":\"heartbeat\",\"found\":" + (timestamp != null)
+                        + (timestamp == null ? "" : ",\"_version\":1,\"_seq_no\":0,\"_primary_term\":1,\"_source\":{\"timestamp\":" + timestamp + "}")
+                        + "}");
+            } else if (path.startsWith("/" + HEARTBEAT_INDEX + "/_doc/heartbeat")) {
+                Matcher matcher = TIMESTAMP.matcher(body);
+                heartbeat = matcher.find() ? Long.valueOf(matcher.group(1)) : null;
+                respond(exchange, 200, "{\"_index\":\"" + HEARTBEAT_INDEX + "\",\"_type\":\"_doc\",\"_id\":\"heartbeat\","
+                        + "\"_version\":2,\"result\":\"updated\",\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},"
+                        + "\"_seq_no\":1,\"_primary_term\":1}");
+            } else if (path.endsWith("/_search")) {
+                searches.incrementAndGet();
+                if (searchStatus != 200) {
+                    respond(exchange, searchStatus, "{\"error\":{\"root_cause\":[],\"type\":\"unavailable\","
+                            + "\"reason\":\"stub unavailable\"},\"status\":" + searchStatus + "}");
+                    return;
+                }
+                respond(exchange, 200, "{\"took\":1,\"timed_out\":false,"
+                        + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+                        + "\"hits\":{\"total\":{\"value\":" + totalHits + ",\"relation\":\"eq\"},\"max_score\":null,\"hits\":[]}}");
+            } else {
+                respond(exchange, 404, "{}");
+            }
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        }
+
+        private static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
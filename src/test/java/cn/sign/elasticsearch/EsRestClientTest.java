@@ -0,0 +1,153 @@
+package cn.sign.elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+/**
+ * 使用本地HTTP服务模拟es，验证压缩编码下的请求参数、gzip响应和gzip错误响应的解析
+ */
+public class EsRestClientTest {
+
+    private static final String SEARCH_RESPONSE = "{\"took\":1,\"timed_out\":false,"
+            + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+            + "\"hits\":{\"total\":{\"value\":0,\"relation\":\"eq\"},\"max_score\":null,\"hits\":[]}}";
+
+    private HttpServer server;
+    private EsRestClient client;
+
+    private volatile int status = 200;
+    private volatile String responseBody = SEARCH_RESPONSE;
+    private volatile String requestPath;
+    private volatile String requestQuery;
+    private volatile String requestBody;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        client = new EsRestClient(RestClient.builder(new HttpHost("127.0.0.1", server.getAddress().getPort())),
+                true, 0, false, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void searchSendsSameParametersAsHighLevelClient() throws IOException {
+        SearchRequest request = new SearchRequest("logs#1", "test_index")
+                .source(new SearchSourceBuilder().query(QueryBuilders.termQuery("name", "name1")))
+                .searchType(SearchType.DFS_QUERY_THEN_FETCH)
+                .indicesOptions(IndicesOptions.lenientExpandOpen())
+                .routing("r1");
+        request.setBatchedReduceSize(64);
+        request.setPreFilterShardSize(16);
+        request.setMaxConcurrentShardRequests(3);
+
+        SearchResponse response = client.encodedSearch(request, RequestOptions.DEFAULT);
+
+        assertThat(response.getHits().getTotalHits().value).isEqualTo(0L);
+        assertThat(requestPath).isEqualTo("/logs%231,test_index/_search");
+        assertThat(requestQuery.split("&")).contains("typed_keys=true", "routing=r1", "search_type=dfs_query_then_fetch",
+                "ignore_unavailable=true", "allow_no_indices=true", "expand_wildcards=open", "batched_reduce_size=64",
+                "pre_filter_shard_size=16", "max_concurrent_shard_requests=3", "ccs_minimize_roundtrips=true");
+        assertThat(requestBody).contains("\"term\"");
+    }
+
+    @Test
+    public void searchWithTypesIsRejected() {
+        SearchRequest request = new SearchRequest("test_index").types("doc");
+
+        assertThat(catchThrowable(() -> client.encodedSearch(request, RequestOptions.DEFAULT)))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void gzipErrorResponseIsParsed() {
+        status = 400;
+        responseBody = "{\"error\":{\"root_cause\":[],\"type\":\"parsing_exception\",\"reason\":\"unknown query [tern]\"},\"status\":400}";
+
+        Throwable thrown = catchThrowable(() -> client.encodedSearch(new SearchRequest("test_index"), RequestOptions.DEFAULT));
+
+        assertThat(thrown).isInstanceOf(ElasticsearchStatusException.class);
+        assertThat(((ElasticsearchStatusException) thrown).status()).isEqualTo(RestStatus.BAD_REQUEST);
+        assertThat(thrown.getMessage()).contains("unknown query [tern]");
+    }
+
+    @Test
+    public void bulkResponseIsDecompressed() throws IOException {
+        responseBody = "{\"took\":2,\"errors\":false,\"items\":[{\"index\":{\"_index\":\"test_index\",\"_type\":\"_doc\",\"_id\":\"1\","
+                + "\"_version\":1,\"result\":\"created\",\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},"
+                + "\"_seq_no\":0,\"_primary_term\":1,\"status\":201}}]}";
+        BulkRequest request = new BulkRequest().add(new IndexRequest("test_index").id("1").source("{\"name\":\"name1\"}", XContentType.JSON));
+
+        BulkResponse response = client.encodedBulk(request, RequestOptions.DEFAULT);
+
+        assertThat(response.hasFailures()).isFalse();
+        assertThat(response.getItems()[0].getId()).isEqualTo("1");
+        assertThat(requestPath).isEqualTo("/_bulk");
+        assertThat(requestBody).isEqualTo("{\"index\":{\"_index\":\"test_index\",\"_id\":\"1\"}}\n{\"name\":\"name1\"}\n");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestPath = exchange.getRequestURI().getRawPath();
+        requestQuery = exchange.getRequestURI().getRawQuery();
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        requestBody = new String(readAll(in), StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(responseBody.getBytes(StandardCharsets.UTF_8));
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(status, compressed.size());
+        exchange.getResponseBody().write(compressed.toByteArray());
+        exchange.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
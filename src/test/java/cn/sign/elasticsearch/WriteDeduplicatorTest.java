@@ -0,0 +1,184 @@
+package cn.sign.elasticsearch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 验证写入去重的跳过、清除、暂停恢复，以及同一文档的并发写入按任意顺序返回时都不记录内容
+ */
+public class WriteDeduplicatorTest {
+
+    private WriteDeduplicator deduplicator;
+    private long key;
+    private long bodyA;
+    private long bodyB;
+
+    @Before
+    public void setUp() {
+        deduplicator = new WriteDeduplicator();
+        ReflectionTestUtils.setField(deduplicator, "enabled", true);
+        ReflectionTestUtils.setField(deduplicator, "capacity", 1024);
+        deduplicator.init();
+        key = deduplicator.key("test_index", "1", null);
+        bodyA = deduplicator.body("{\"name\":\"a\"}");
+        bodyB = deduplicator.body("{\"name\":\"b\"}");
+    }
+
+    @Test
+    public void unchangedBodyIsSkippedAfterSuccessfulWrite() {
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+
+        write(bodyA);
+
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isTrue();
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isFalse();
+        // 路由不同是另一个文档
+        assertThat(deduplicator.isUnchanged(deduplicator.key("test_index", "1", "r1"), bodyA)).isFalse();
+    }
+
+    @Test
+    public void disabledNeverSkips() {
+        WriteDeduplicator disabled = new WriteDeduplicator();
+        disabled.init();
+        long ticket = disabled.begin(key);
+        disabled.complete(key, ticket, bodyA);
+
+        assertThat(ticket).isEqualTo(0L);
+        assertThat(disabled.isUnchanged(key, bodyA)).isFalse();
+    }
+
+    @Test
+    public void forgetClearsRecord() {
+        write(bodyA);
+
+        deduplicator.forget("test_index", "1", null);
+
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+    }
+
+    @Test
+    public void forgetDuringWriteDiscardsResult() {
+        long ticket = deduplicator.begin(key);
+        deduplicator.forget(key);
+        deduplicator.complete(key, ticket, bodyA);
+
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+        // 之后的写入不受影响
+        write(bodyA);
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isTrue();
+    }
+
+    @Test
+    public void abortedWriteClearsRecord() {
+        write(bodyA);
+
+        deduplicator.begin(key);
+        deduplicator.abort(key);
+
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+        write(bodyB);
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isTrue();
+    }
+
+    @Test
+    public void writeInFlightIsNeverSkipped() {
+        write(bodyA);
+
+        long ticket = deduplicator.begin(key);
+
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+        deduplicator.complete(key, ticket, bodyB);
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isTrue();
+    }
+
+    @Test
+    public void untrackedWriteInFlightIsNeverSkipped() {
+        write(bodyA);
+
+        // 新增、删除等不记录内容的写入
+        long untracked = deduplicator.begin("test_index", "1", null);
+        long ticket = deduplicator.begin(key);
+        deduplicator.complete(key, ticket, bodyB);
+
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isFalse();
+        deduplicator.abort(untracked);
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isFalse();
+    }
+
+    @Test
+    public void overlappingWritesAreNotRememberedWhenLaterWriteReturnsFirst() {
+        long ticketA = deduplicator.begin(key);
+        long ticketB = deduplicator.begin(key);
+
+        deduplicator.complete(key, ticketB, bodyB);
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isFalse();
+        deduplicator.complete(key, ticketA, bodyA);
+
+        // es的执行顺序未知，两份内容都不能跳过
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isFalse();
+    }
+
+    @Test
+    public void overlappingWritesAreNotRememberedWhenEarlierWriteReturnsFirst() {
+        long ticketA = deduplicator.begin(key);
+        long ticketB = deduplicator.begin(key);
+
+        deduplicator.complete(key, ticketA, bodyA);
+        deduplicator.complete(key, ticketB, bodyB);
+
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isFalse();
+        // 并发写入全部结束后恢复去重
+        write(bodyB);
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isTrue();
+    }
+
+    @Test
+    public void suspendClearsAndDisablesUntilResume() {
+        write(bodyA);
+
+        deduplicator.suspend();
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+        write(bodyB);
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isFalse();
+
+        deduplicator.resume();
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isFalse();
+        write(bodyB);
+        assertThat(deduplicator.isUnchanged(key, bodyB)).isTrue();
+    }
+
+    @Test
+    public void writeStartedBeforeSuspendIsNotRememberedAfterResume() {
+        long ticket = deduplicator.begin(key);
+        deduplicator.suspend();
+        deduplicator.resume();
+
+        // 按查询修改的任务可能在本次写入之后执行
+        deduplicator.complete(key, ticket, bodyA);
+
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+    }
+
+    @Test
+    public void nestedSuspendResumesAfterLastTask() {
+        deduplicator.suspend();
+        deduplicator.suspend();
+        deduplicator.resume();
+        write(bodyA);
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isFalse();
+
+        deduplicator.resume();
+        write(bodyA);
+        assertThat(deduplicator.isUnchanged(key, bodyA)).isTrue();
+    }
+
+    private void write(long body) {
+        long ticket = deduplicator.begin(key);
+        deduplicator.complete(key, ticket, body);
+    }
+}
@@ -0,0 +1,272 @@
+package cn.sign.elasticsearch;
+
+import com.alibaba.fastjson.JSONObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 使用本地HTTP服务模拟es的_bulk接口，验证暂存区的追加、重启后从检查点回放、分段切换和删除、
+ * 无法回放的写操作移至poison.ndjson，以及403 cluster_block_exception按不可用处理
+ */
+public class WriteSpoolTest {
+
+    private static final String INDEX = "test_index";
+    private static final String BLOCKED = "{\"type\":\"cluster_block_exception\","
+            + "\"reason\":\"index [test_index] blocked by: [FORBIDDEN/8/index write (api)];\"}";
+    private static final String MAPPER_PARSING = "{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}";
+
+    private Path dir;
+    private StubBulk stub;
+    private RestHighLevelClient client;
+    private final List<WriteSpool> spools = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("es-spool-test");
+        stub = new StubBulk();
+        client = new RestHighLevelClient(RestClient.builder(new HttpHost("127.0.0.1", stub.server.getAddress().getPort())));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (WriteSpool spool : spools) {
+            spool.close();
+        }
+        client.close();
+        stub.server.stop(0);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void appendedWritesAreReplayedAfterRestart() throws IOException {
+        WriteSpool spool = open(65536, 5242880);
+        assertThat(spool.append(requests("1", "2", "3"))).isTrue();
+        assertThat(spool.hasPending()).isTrue();
+
+        stub.status = 503;
+        spool.replay();
+        assertThat(spool.hasPending()).isTrue();
+        spool.close();
+
+        stub.status = 200;
+        WriteSpool restarted = open(65536, 5242880);
+        assertThat(restarted.hasPending()).isTrue();
+        restarted.replay();
+
+        assertThat(restarted.hasPending()).isFalse();
+        assertThat(stub.ids).containsExactly("1", "2", "3");
+    }
+
+    @Test
+    public void restartResumesFromCheckpoint() throws IOException {
+        // 每批只回放一条，第二批起集群不可用
+        WriteSpool spool = open(65536, 1);
+        spool.append(requests("1", "2", "3"));
+        stub.availableBulks = 1;
+        spool.replay();
+        assertThat(stub.ids).containsExactly("1");
+        assertThat(spool.hasPending()).isTrue();
+        spool.close();
+
+        stub.availableBulks = Integer.MAX_VALUE;
+        WriteSpool restarted = open(65536, 1);
+        restarted.replay();
+
+        // 已回放的写操作不再重发
+        assertThat(stub.ids).containsExactly("1", "2", "3");
+        assertThat(restarted.hasPending()).isFalse();
+    }
+
+    @Test
+    public void fullSegmentsRollOverAndAreDeletedAfterReplay() throws IOException {
+        WriteSpool spool = open(256, 5242880);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(String.valueOf(i));
+            spool.append(requests(String.valueOf(i)));
+        }
+        assertThat(segments().size()).isGreaterThan(2);
+
+        spool.replay();
+
+        assertThat(spool.hasPending()).isFalse();
+        assertThat(stub.ids).containsExactlyElementsOf(ids);
+        // 只保留当前写入的分段
+        assertThat(segments()).hasSize(1);
+
+        spool.append(requests("10"));
+        spool.replay();
+        assertThat(stub.ids).endsWith("10");
+    }
+
+    @Test
+    public void rejectedWriteIsMovedToPoisonWithoutBlockingReplay() throws IOException {
+        WriteSpool spool = open(65536, 5242880);
+        spool.append(requests("1", "bad", "3"));
+        stub.itemErrors.put("bad", new Object[]{400, MAPPER_PARSING});
+
+        spool.replay();
+
+        assertThat(spool.hasPending()).isFalse();
+        assertThat(stub.ids).containsExactly("1", "bad", "3");
+        String poison = new String(Files.readAllBytes(dir.resolve("poison.ndjson")), StandardCharsets.UTF_8);
+        assertThat(poison).contains("\"_id\":\"bad\"").doesNotContain("\"_id\":\"1\"").doesNotContain("\"_id\":\"3\"");
+
+        spool.append(requests("4"));
+        spool.replay();
+        assertThat(stub.ids).endsWith("4");
+    }
+
+    @Test
+    public void writeBlockedIndexIsRetriedNotPoisoned() throws IOException {
+        WriteSpool spool = open(65536, 5242880);
+        spool.append(requests("1", "2"));
+        stub.itemErrors.put("2", new Object[]{403, BLOCKED});
+
+        spool.replay();
+
+        assertThat(spool.hasPending()).isTrue();
+        assertThat(Files.exists(dir.resolve("poison.ndjson"))).isFalse();
+
+        // 索引解除禁止写入后整批重放
+        stub.itemErrors.clear();
+        spool.replay();
+        assertThat(spool.hasPending()).isFalse();
+        assertThat(stub.ids).containsExactly("1", "2", "1", "2");
+    }
+
+    @Test
+    public void onlyWriteBlockForbiddenIsUnavailable() {
+        assertThat(WriteSpool.isUnavailable(new ElasticsearchStatusException(
+                "Elasticsearch exception [type=cluster_block_exception, reason=index [test_index] blocked]", RestStatus.FORBIDDEN))).isTrue();
+        assertThat(WriteSpool.isUnavailable(new ElasticsearchStatusException(
+                "Elasticsearch exception [type=security_exception, reason=action is unauthorized]", RestStatus.FORBIDDEN))).isFalse();
+        assertThat(WriteSpool.isUnavailable(new ElasticsearchStatusException("rejected", RestStatus.TOO_MANY_REQUESTS))).isTrue();
+        assertThat(WriteSpool.isUnavailable(new ElasticsearchStatusException("bad request", RestStatus.BAD_REQUEST))).isFalse();
+        assertThat(WriteSpool.isUnavailable(new IOException("connection refused"))).isTrue();
+    }
+
+    private WriteSpool open(int segmentSize, int replayBatchBytes) throws IOException {
+        WriteSpool spool = new WriteSpool();
+        ReflectionTestUtils.setField(spool, "enabled", true);
+        ReflectionTestUtils.setField(spool, "dir", dir.toString());
+        ReflectionTestUtils.setField(spool, "segmentSize", segmentSize);
+        ReflectionTestUtils.setField(spool, "replayBatchBytes", replayBatchBytes);
+        // 回放由测试直接调用
+        ReflectionTestUtils.setField(spool, "replayIntervalMillis", 3600000L);
+        ReflectionTestUtils.setField(spool, "client", client);
+        spool.open();
+        spools.add(spool);
+        return spool;
+    }
+
+    private static List<DocWriteRequest<?>> requests(String... ids) {
+        List<DocWriteRequest<?>> requests = new ArrayList<>();
+        for (String id : ids) {
+            requests.add(new IndexRequest(INDEX).id(id).source("{\"name\":\"name" + id + "\"}", XContentType.JSON));
+        }
+        return requests;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("spool-")).collect(Collectors.toList());
+        }
+    }
+
+    private static class StubBulk {
+        private final HttpServer server;
+        private final List<String> ids = new CopyOnWriteArrayList<>();
+        private final Map<String, Object[]> itemErrors = new HashMap<>();
+        private volatile int status = 200;
+        private volatile int availableBulks = Integer.MAX_VALUE;
+        private final AtomicInteger bulks = new AtomicInteger();
+
+        private StubBulk() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this::handle);
+            server.start();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            if (!exchange.getRequestURI().getPath().endsWith("/_bulk")) {
+                respond(exchange, 404, "{}");
+                return;
+            }
+            if (status != 200 || bulks.incrementAndGet() > availableBulks) {
+                respond(exchange, 503, "{\"error\":{\"root_cause\":[],\"type\":\"unavailable\",\"reason\":\"stub unavailable\"},\"status\":503}");
+                return;
+            }
+            StringBuilder items = new StringBuilder();
+            boolean errors = false;
+            String[] lines = body.split("\n");
+            // 测试只使用index操作，每个操作两行
+            for (int i = 0; i < lines.length; i += 2) {
+                JSONObject meta = JSONObject.parseObject(lines[i]).getJSONObject("index");
+                String id = meta.getString("_id");
+                ids.add(id);
+                Object[] error = itemErrors.get(id);
+                if (items.length() > 0) {
+                    items.append(',');
+                }
+                items.append("{\"index\":{\"_index\":\"").append(meta.getString("_index")).append("\",\"_type\":\"_doc\",\"_id\":\"").append(id).append('"');
+                if (error == null) {
+                    items.append(",\"_version\":1,\"result\":\"created\",\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},"
+                            + "\"_seq_no\":0,\"_primary_term\":1,\"status\":201}}");
+                } else {
+                    errors = true;
+                    items.append(",\"status\":").append(error[0]).append(",\"error\":").append(error[1]).append("}}");
+                }
+            }
+            respond(exchange, 200, "{\"took\":1,\"errors\":" + errors + ",\"items\":[" + items + "]}");
+        }
+
+        private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        }
+
+        private static byte[] readAll(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
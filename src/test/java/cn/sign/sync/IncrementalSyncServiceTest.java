@@ -0,0 +1,178 @@
+package cn.sign.sync;
+
+import cn.sign.elasticsearch.BulkResult;
+import cn.sign.elasticsearch.ElasticClient;
+import org.elasticsearch.action.support.WriteRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.sql.Timestamp;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 使用H2(MySQL模式)验证keyset分页、水位保存和重启后续传、延迟窗口和逻辑删除
+ */
+public class IncrementalSyncServiceTest {
+
+    private static final long BASE_TIME = System.currentTimeMillis() - 600000L;
+
+    private DriverManagerDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private ElasticClient elasticClient;
+    private SyncProperties properties;
+    private IncrementalSyncService service;
+
+    private final List<String> upserted = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws Exception {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:sync" + System.nanoTime() + ";DB_CLOSE_DELAY=-1;MODE=MySQL", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE test (id BIGINT PRIMARY KEY, name VARCHAR(64), update_time TIMESTAMP(6), deleted TINYINT DEFAULT 0)");
+
+        elasticClient = mock(ElasticClient.class);
+        when(elasticClient.bulkUpdate(anyList(), eq(WriteRequest.RefreshPolicy.NONE))).thenAnswer(invocation -> {
+            List<Map<String, String>> docs = invocation.getArgument(0);
+            docs.forEach(doc -> upserted.add(doc.get("id")));
+            return new BulkResult("update");
+        });
+        when(elasticClient.bulkDelete(anyList(), eq(WriteRequest.RefreshPolicy.NONE))).thenAnswer(invocation -> {
+            List<Map<String, String>> docs = invocation.getArgument(0);
+            docs.forEach(doc -> deleted.add(doc.get("id")));
+            return new BulkResult("delete");
+        });
+
+        SyncProperties.Table table = new SyncProperties.Table();
+        table.setTable("test");
+        table.setIndex("test_index");
+        table.setBatchSize(2);
+        table.setParallelism(2);
+        table.setLagMillis(60000L);
+        table.setDeletedColumn("deleted");
+        properties = new SyncProperties();
+        properties.setEnabled(true);
+        properties.setIntervalMillis(3600000L);
+        properties.getTables().add(table);
+        service = start();
+    }
+
+    @After
+    public void tearDown() {
+        service.destroy();
+        jdbcTemplate.execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    public void keysetPagingReadsRowsWithSameWatermarkAcrossBatches() throws Exception {
+        for (long id = 1; id <= 5; id++) {
+            insert(id, BASE_TIME);
+        }
+
+        assertThat(service.syncTable(table())).isEqualTo(5L);
+        assertThat(upserted).containsExactlyInAnyOrder("1", "2", "3", "4", "5");
+        assertThat(service.syncTable(table())).isEqualTo(0L);
+    }
+
+    @Test
+    public void watermarkIsSavedTypedAndResumedAfterRestart() throws Exception {
+        for (long id = 1; id <= 5; id++) {
+            insert(id, BASE_TIME);
+        }
+        service.syncTable(table());
+
+        Map<String, Object> mark = jdbcTemplate.queryForMap("SELECT * FROM es_sync_watermark WHERE sync_key = 'test:test_index'");
+        assertThat(mark.get("WATERMARK_TIME")).isEqualTo(new Timestamp(BASE_TIME));
+        assertThat(mark.get("LAST_ID_NUMBER")).isEqualTo(5L);
+        assertThat(mark.get("WATERMARK_TEXT")).isNull();
+
+        service.destroy();
+        service = start();
+        upserted.clear();
+        insert(6L, BASE_TIME + 1000L);
+        jdbcTemplate.update("UPDATE test SET name = 'changed', update_time = ? WHERE id = 2", new Timestamp(BASE_TIME + 2000L));
+
+        assertThat(service.syncTable(table())).isEqualTo(2L);
+        assertThat(upserted).containsExactlyInAnyOrder("6", "2");
+    }
+
+    @Test
+    public void rowsInsideLagWindowAreDeferred() throws Exception {
+        insert(1L, BASE_TIME);
+        insert(2L, System.currentTimeMillis());
+
+        assertThat(service.syncTable(table())).isEqualTo(1L);
+        assertThat(upserted).containsExactly("1");
+
+        // 延迟窗口过后再同步
+        table().setLagMillis(0L);
+        assertThat(service.syncTable(table())).isEqualTo(1L);
+        assertThat(upserted).containsExactly("1", "2");
+    }
+
+    @Test
+    public void softDeletedRowsAreDeletedFromIndex() throws Exception {
+        insert(1L, BASE_TIME);
+        insert(2L, BASE_TIME);
+        service.syncTable(table());
+        upserted.clear();
+
+        jdbcTemplate.update("UPDATE test SET deleted = 1, update_time = ? WHERE id = 1", new Timestamp(BASE_TIME + 1000L));
+
+        assertThat(service.syncTable(table())).isEqualTo(1L);
+        assertThat(deleted).containsExactly("1");
+        assertThat(upserted).isEmpty();
+    }
+
+    @Test
+    public void rowsWithoutWatermarkDoNotStallSync() throws Exception {
+        // 不设延迟窗口时没有上限条件过滤NULL
+        table().setLagMillis(0L);
+        insert(1L, BASE_TIME);
+        jdbcTemplate.update("INSERT INTO test (id, name, update_time) VALUES (2, 'name2', NULL)");
+        jdbcTemplate.update("INSERT INTO test (id, name, update_time) VALUES (3, 'name3', NULL)");
+        jdbcTemplate.update("INSERT INTO test (id, name, update_time) VALUES (4, 'name4', NULL)");
+
+        assertThat(service.syncTable(table())).isEqualTo(1L);
+        assertThat(upserted).containsExactly("1");
+
+        insert(5L, BASE_TIME + 1000L);
+        assertThat(service.syncTable(table())).isEqualTo(1L);
+        assertThat(upserted).containsExactly("1", "5");
+    }
+
+    @Test
+    public void savedNullWatermarkRestartsFromBeginning() throws Exception {
+        insert(1L, BASE_TIME);
+        service.syncTable(table());
+        jdbcTemplate.update("UPDATE es_sync_watermark SET watermark_time = NULL WHERE sync_key = 'test:test_index'");
+        upserted.clear();
+        insert(2L, BASE_TIME + 1000L);
+
+        assertThat(service.syncTable(table())).isEqualTo(2L);
+        assertThat(upserted).containsExactlyInAnyOrder("1", "2");
+    }
+
+    private IncrementalSyncService start() {
+        IncrementalSyncService syncService = new IncrementalSyncService(dataSource, elasticClient, properties);
+        syncService.start();
+        return syncService;
+    }
+
+    private SyncProperties.Table table() {
+        return properties.getTables().get(0);
+    }
+
+    private void insert(long id, long updateTime) {
+        jdbcTemplate.update("INSERT INTO test (id, name, update_time) VALUES (?, ?, ?)", id, "name" + id, new Timestamp(updateTime));
+    }
+}